@@ -0,0 +1,251 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.kontalk.crypto.PGPUtils;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.model.InMessage;
+import org.kontalk.model.KonMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.MessageContent;
+import org.kontalk.model.OutMessage;
+import org.kontalk.model.ThreadList;
+import org.kontalk.model.User;
+import org.kontalk.model.UserList;
+import org.kontalk.system.AccountLoader;
+import org.kontalk.system.Config;
+import org.kontalk.system.Database;
+
+/**
+ * Fixtures for benchmarks: a throwaway configuration directory with database
+ * and personal key.
+ * Each benchmark runs in its own JVM, so the global state is set up only once.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class BenchmarkSetup {
+
+    public static final String USER_ID = "Benchmark <bench@kontalk.test>";
+    private static final char[] PASSWORD = "benchmark".toCharArray();
+    /** Time span of the generated message history. */
+    private static final long HISTORY = 365L * 24 * 60 * 60 * 1000;
+    private static final int INCOMING_PERCENT = 60;
+
+    private static File HOME_DIR = null;
+    private static byte[] PUBLIC_KEY_RING = null;
+
+    private BenchmarkSetup() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Create a temporary configuration directory and initialize
+     * configuration and database in it. Must be called before anything else
+     * uses the configuration directory.
+     */
+    public static synchronized void initialize() throws Exception {
+        if (HOME_DIR != null)
+            return;
+
+        HOME_DIR = Files.createTempDirectory("kontalk_bench").toFile();
+        // the configuration directory is derived from the home directory
+        System.setProperty("user.home", HOME_DIR.getAbsolutePath());
+        String configDir = Kontalk.getConfigDir();
+        if (!configDir.startsWith(HOME_DIR.getAbsolutePath()))
+            throw new IllegalStateException("configuration directory already set: "+configDir);
+
+        Config.initialize(configDir + "/" + Config.CONF_NAME);
+        Database.initialize(configDir + "/" + Database.DB_NAME);
+    }
+
+    /** Delete the temporary configuration directory. */
+    public static synchronized void destroy() {
+        if (HOME_DIR == null)
+            return;
+        Database.getInstance().flush();
+        FileUtils.deleteQuietly(HOME_DIR);
+    }
+
+    /**
+     * Generate a new personal key and import it as account.
+     */
+    public static synchronized PersonalKey createAccount() throws Exception {
+        if (AccountLoader.getInstance().getPersonalKey().isPresent())
+            return AccountLoader.getInstance().getPersonalKey().get();
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA", PGPUtils.PROVIDER);
+        kpg.initialize(2048);
+        KeyPair signKp = kpg.generateKeyPair();
+        KeyPair encryptKp = kpg.generateKeyPair();
+        Date now = new Date();
+        PGPKeyPair signKey = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, signKp, now);
+        PGPKeyPair encryptKey = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, encryptKp, now);
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(HashAlgorithmTags.SHA1);
+        PGPKeyRingGenerator ringGen = new PGPKeyRingGenerator(
+                PGPSignature.POSITIVE_CERTIFICATION,
+                signKey,
+                USER_ID,
+                sha1Calc,
+                null,
+                null,
+                new JcaPGPContentSignerBuilder(PGPPublicKey.RSA_GENERAL, HashAlgorithmTags.SHA1),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.AES_256, sha1Calc)
+                    .setProvider(PGPUtils.PROVIDER)
+                    .build(PASSWORD));
+        ringGen.addSubKey(encryptKey);
+        PUBLIC_KEY_RING = ringGen.generatePublicKeyRing().getEncoded();
+        byte[] privateKeyRing = ringGen.generateSecretKeyRing().getEncoded();
+
+        // self-signed bridge certificate
+        X500Name name = new X500Name("CN=bench");
+        byte[] bridgeCert = new JcaX509v3CertificateBuilder(name,
+                BigInteger.ONE,
+                now,
+                new Date(now.getTime() + 24 * 60 * 60 * 1000),
+                name,
+                signKp.getPublic())
+                .build(new JcaContentSignerBuilder("SHA1withRSA")
+                    .setProvider(PGPUtils.PROVIDER)
+                    .build(signKp.getPrivate()))
+                .getEncoded();
+
+        // import like an exported account
+        File zipFile = new File(HOME_DIR, "account.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile))) {
+            putZipEntry(zip, "kontalk-public.asc", armor(PUBLIC_KEY_RING));
+            putZipEntry(zip, "kontalk-private.asc", armor(privateKeyRing));
+            putZipEntry(zip, "kontalk-login.crt", bridgeCert);
+        }
+        AccountLoader.getInstance().importAccount(zipFile.getAbsolutePath(), PASSWORD);
+        return AccountLoader.getInstance().getPersonalKey().get();
+    }
+
+    /**
+     * Create a user. If the account was created before the user has the
+     * public key of the account, messages to this user can be decrypted
+     * again.
+     */
+    public static User createUser(String jid) {
+        User user = UserList.getInstance().add(jid, "").get();
+        if (PUBLIC_KEY_RING != null) {
+            String fingerprint = PGPUtils.readPublicKey(PUBLIC_KEY_RING).get().fingerprint;
+            user.setKey(PUBLIC_KEY_RING, fingerprint);
+        }
+        return user;
+    }
+
+    /**
+     * Fill the database with threads of one user and their history, spread
+     * over the last year: mostly incoming messages and outgoing messages
+     * with a receipt. Only the newest message of each thread is outgoing
+     * and still pending.
+     * The messages are saved, not loaded.
+     */
+    public static Set<KonThread> fillDatabase(int threads, int messagesPerThread) {
+        Database db = Database.getInstance();
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        long interval = messagesPerThread > 0 ? HISTORY / messagesPerThread : 0;
+        Set<KonThread> result = new HashSet<>();
+        for (int i = 0; i < threads; i++) {
+            User user = createUser("user" + i + "@kontalk.test");
+            KonThread thread = ThreadList.getInstance().get(user);
+            for (int j = 0; j < messagesPerThread; j++) {
+                MessageContent content = new MessageContent("message " + j + " in thread " + i);
+                boolean last = j == messagesPerThread - 1;
+                // oldest first, like they were received
+                Date date = new Date(now - (messagesPerThread - j) * interval + i);
+                Map<String, Object> set = new HashMap<>();
+                set.put(KonMessage.COL_DATE, date);
+                KonMessage message;
+                if (!last && random.nextInt(100) < INCOMING_PERCENT) {
+                    InMessage.Builder builder = new InMessage.Builder(thread, user);
+                    builder.jid(user.getJID());
+                    builder.xmppID("bench_" + i + "_" + j);
+                    builder.serverDate(Optional.of(date));
+                    builder.content(content);
+                    message = builder.build();
+                } else {
+                    OutMessage.Builder builder = new OutMessage.Builder(thread, user, false);
+                    builder.content(content);
+                    message = builder.build();
+                    if (!last) {
+                        set.put(KonMessage.COL_REC_STAT, KonMessage.Status.RECEIVED);
+                        set.put(KonMessage.COL_SERV_DATE, date);
+                    }
+                }
+                // the builders use the current time
+                db.execUpdate(KonMessage.TABLE, set, message.getID());
+            }
+            result.add(thread);
+        }
+        db.flush();
+        return result;
+    }
+
+    private static byte[] armor(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream armored = new ArmoredOutputStream(out)) {
+            armored.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static void putZipEntry(ZipOutputStream zip, String name, byte[] data)
+            throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(data);
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.kontalk.misc.StartupProfile;
+import org.kontalk.system.Database;
+
+/**
+ * Headless startup time measurement.
+ * Generates a configuration directory with the given number of users,
+ * threads and messages, then starts the application (without view and
+ * network) several times on it, each time in a new JVM.
+ * The first run is reported as cold start, the following runs as warm starts.
+ * Note: the operating system file cache is not dropped, the cold run only
+ * includes the first time work of the application on the directory.
+ *
+ * Usage: StartupHarness [users threads messagesPerThread runs]
+ *
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class StartupHarness {
+
+    private static final String CHILD_ARG = "--child";
+    private static final String JVM_PHASE = "JVM";
+    private static final String TOTAL_PHASE = "TOTAL";
+
+    private StartupHarness() {
+        throw new AssertionError();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 1 && args[0].equals(CHILD_ARG)) {
+            runChild();
+            return;
+        }
+
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        if (threads > users || runs < 2)
+            throw new IllegalArgumentException("need users >= threads and runs >= 2");
+
+        System.out.println("generating "+users+" users, "+threads+" threads, "
+                +messages*threads+" messages...");
+        BenchmarkSetup.initialize();
+        BenchmarkSetup.fillDatabase(threads, messages);
+        for (int i = threads; i < users; i++)
+            BenchmarkSetup.createUser("user" + i + "@kontalk.test");
+        Database.getInstance().flush();
+        String home = System.getProperty("user.home");
+
+        // on failure the directory is kept for its log
+        List<Map<String, Long>> results = new ArrayList<>(runs);
+        for (int i = 0; i < runs; i++)
+            results.add(startChild(home));
+        BenchmarkSetup.destroy();
+
+        System.out.println(String.format("%-10s %10s %10s %10s",
+                "phase", "cold [ms]", "warm [ms]", "warm min"));
+        for (String phase : results.get(0).keySet()) {
+            long sum = 0;
+            long min = Long.MAX_VALUE;
+            for (Map<String, Long> result : results.subList(1, runs)) {
+                Long value = result.get(phase);
+                long v = value == null ? 0 : value;
+                sum += v;
+                min = Math.min(min, v);
+            }
+            System.out.println(String.format("%-10s %10d %10d %10d",
+                    phase.toLowerCase(),
+                    results.get(0).get(phase),
+                    sum / (runs - 1),
+                    min));
+        }
+    }
+
+    /**
+     * Start the application in a new JVM on the configuration directory.
+     * @return duration of each phase in milliseconds, in phase order
+     */
+    private static Map<String, Long> startChild(String home)
+            throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "-Duser.home=" + home,
+                StartupHarness.class.getName(),
+                CHILD_ARG);
+        // application logging goes to stderr
+        builder.redirectError(ProcessBuilder.Redirect.appendTo(
+                new File(home, "startup_harness.log")));
+        Process process = builder.start();
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] split = line.split("\t");
+                if (split.length == 2)
+                    result.put(split[0], Long.parseLong(split[1]));
+            }
+        }
+        int exit = process.waitFor();
+        if (exit != 0 || result.isEmpty())
+            throw new IllegalStateException("startup failed, exit code: "+exit
+                    +", see log in "+home);
+        return result;
+    }
+
+    /** Start headless and write the phase durations to stdout. */
+    private static void runChild() throws Exception {
+        StartupProfile profile = Kontalk.startHeadless();
+        System.out.println(JVM_PHASE + "\t" + profile.getJVMStartup());
+        for (Map.Entry<StartupProfile.Phase, Long> entry : profile.getDurations().entrySet())
+            System.out.println(entry.getKey().name() + "\t" + entry.getValue());
+        System.out.println(TOTAL_PHASE + "\t" + profile.getTotal());
+        System.out.flush();
+        // database threads are still running
+        System.exit(0);
+    }
+}
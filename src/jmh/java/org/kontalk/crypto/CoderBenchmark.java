@@ -0,0 +1,160 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.Base64;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.StringUtils;
+import org.kontalk.BenchmarkSetup;
+import org.kontalk.model.InMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.MessageContent;
+import org.kontalk.model.OutMessage;
+import org.kontalk.model.ThreadList;
+import org.kontalk.model.User;
+import org.kontalk.system.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encryption and decryption of messages with both crypto backends.
+ * Messages are sent to users with the public key of the own account, so they
+ * can be decrypted again.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CoderBenchmark {
+
+    @Param({"bc", "jce"})
+    public String backend;
+
+    /** Length of the message text in characters. */
+    @Param({"100", "10000"})
+    public int textLength;
+
+    private KonThread mThread;
+    private User mUser;
+    private String mText;
+    private String mEncrypted;
+
+    // encryption doesn't change the messages, they are reused
+    private OutMessage mOutMessage;
+
+    /** A new, not decrypted message for each invocation. */
+    private InMessage mInMessage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSetup.initialize();
+        BenchmarkSetup.createAccount();
+        mUser = BenchmarkSetup.createUser("coder@kontalk.test");
+        mThread = ThreadList.getInstance().get(mUser);
+        mText = StringUtils.repeat("x", textLength);
+
+        // output of each backend must be readable by the other one
+        for (CryptoBackend encrypting : CryptoBackend.values()) {
+            for (CryptoBackend decrypting : CryptoBackend.values()) {
+                this.setBackend(encrypting);
+                String encrypted = this.encrypt();
+                this.setBackend(decrypting);
+                InMessage message = this.newInMessage(encrypted);
+                Coder.processInMessage(message);
+                if (!mText.equals(message.getContent().getText()) ||
+                        !message.getCoderStatus().getErrors().isEmpty())
+                    throw new IllegalStateException("can't decrypt output of "
+                            +encrypting+" with "+decrypting+": "
+                            +message.getCoderStatus().getErrors());
+            }
+        }
+
+        this.setBackend(CryptoBackend.valueOf(backend.toUpperCase()));
+        mEncrypted = this.encrypt();
+
+        mOutMessage = this.newOutMessage(mUser);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpMessage() {
+        mInMessage = this.newInMessage(mEncrypted);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkSetup.destroy();
+    }
+
+    /** Encryption for one user. */
+    @Benchmark
+    public Optional<byte[]> processOutMessage() {
+        return Coder.processOutMessage(mOutMessage);
+    }
+
+    /** Decryption, verification and parsing of one message. */
+    @Benchmark
+    public InMessage processInMessage() {
+        Coder.processInMessage(mInMessage);
+        return mInMessage;
+    }
+
+    private void setBackend(CryptoBackend b) {
+        Config.getInstance().setProperty(Config.MAIN_CRYPTO_BACKEND, b.name().toLowerCase());
+    }
+
+    private String encrypt() {
+        Optional<byte[]> encrypted = Coder.processOutMessage(this.newOutMessage(mUser));
+        if (!encrypted.isPresent())
+            throw new IllegalStateException("can't encrypt message");
+        return Base64.getEncoder().encodeToString(encrypted.get());
+    }
+
+    private OutMessage newOutMessage(User user) {
+        OutMessage.Builder builder = new OutMessage.Builder(mThread, user, true);
+        builder.content(new MessageContent(mText));
+        return builder.build();
+    }
+
+    private InMessage newInMessage(String encrypted) {
+        InMessage.Builder builder = new InMessage.Builder(mThread, mUser);
+        builder.jid(mUser.getJID());
+        builder.xmppID("bench_" + System.nanoTime());
+        builder.serverDate(Optional.of(new Date()));
+        builder.content(new MessageContent("",
+                Optional.<MessageContent.Attachment>empty(),
+                encrypted));
+        return builder.build();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.kontalk.BenchmarkSetup;
+import org.kontalk.model.InMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.MessageContent;
+import org.kontalk.model.OutMessage;
+import org.kontalk.model.ThreadList;
+import org.kontalk.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-message crypto time for a burst of messages from and to a few users,
+ * with and without the cache of parsed public keys.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyCacheBenchmark {
+
+    /** Number of messages in a burst. */
+    private static final int BURST = 10000;
+    /** Number of users the messages are from or to. */
+    private static final int USERS = 100;
+
+    @Param({"true", "false"})
+    public boolean keyCache;
+
+    private final List<User> mUsers = new ArrayList<>(USERS);
+    private final List<KonThread> mThreads = new ArrayList<>(USERS);
+    /** An encrypted message from each user. */
+    private final List<String> mEncrypted = new ArrayList<>(USERS);
+
+    private final List<OutMessage> mOutMessages = new ArrayList<>(BURST);
+    private final List<InMessage> mInMessages = new ArrayList<>(BURST);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSetup.initialize();
+        BenchmarkSetup.createAccount();
+        Coder.setKeyCache(keyCache);
+
+        // users have the key of the own account, messages to them can be
+        // decrypted as messages from them
+        for (int i = 0; i < USERS; i++) {
+            User user = BenchmarkSetup.createUser("burst" + i + "@kontalk.test");
+            KonThread thread = ThreadList.getInstance().get(user);
+            mUsers.add(user);
+            mThreads.add(thread);
+            Optional<byte[]> encrypted = Coder.processOutMessage(
+                    newOutMessage(thread, user, "message from " + i));
+            if (!encrypted.isPresent())
+                throw new IllegalStateException("can't encrypt message");
+            mEncrypted.add(Base64.getEncoder().encodeToString(encrypted.get()));
+        }
+
+        // encryption doesn't change the messages, they are reused
+        for (int i = 0; i < BURST; i++) {
+            int u = i % USERS;
+            mOutMessages.add(newOutMessage(mThreads.get(u), mUsers.get(u), "message " + i));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpMessages() {
+        mInMessages.clear();
+        for (int i = 0; i < BURST; i++) {
+            int u = i % USERS;
+            InMessage.Builder builder = new InMessage.Builder(mThreads.get(u), mUsers.get(u));
+            builder.jid(mUsers.get(u).getJID());
+            builder.xmppID("burst_" + i + "_" + System.nanoTime());
+            builder.serverDate(Optional.of(new Date()));
+            builder.content(new MessageContent("",
+                    Optional.<MessageContent.Attachment>empty(),
+                    mEncrypted.get(u)));
+            mInMessages.add(builder.build());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Coder.setKeyCache(true);
+        BenchmarkSetup.destroy();
+    }
+
+    /** Encryption of many outgoing messages, e.g. when sending pending messages. */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int outgoingBurst() {
+        int encrypted = 0;
+        for (OutMessage message : mOutMessages) {
+            if (Coder.processOutMessage(message).isPresent())
+                encrypted++;
+        }
+        return encrypted;
+    }
+
+    /** Decryption of many incoming messages, e.g. after being offline. */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int incomingBurst() {
+        int errors = 0;
+        for (InMessage message : mInMessages) {
+            Coder.processInMessage(message);
+            errors += message.getCoderStatus().getErrors().size();
+        }
+        return errors;
+    }
+
+    private static OutMessage newOutMessage(KonThread thread, User user, String text) {
+        OutMessage.Builder builder = new OutMessage.Builder(thread, user, true);
+        builder.content(new MessageContent(text));
+        return builder.build();
+    }
+}
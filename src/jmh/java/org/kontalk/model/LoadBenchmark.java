@@ -0,0 +1,79 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model;
+
+import java.util.concurrent.TimeUnit;
+import org.kontalk.BenchmarkSetup;
+import org.kontalk.system.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading of all threads at startup, with and without parallel decoding.
+ * Loaded messages are kept, so every fork loads only once.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class LoadBenchmark {
+
+    private static final int THREADS = 50;
+    private static final int MESSAGES_PER_THREAD = 1000;
+
+    @Param({"true", "false"})
+    public boolean loadParallel;
+
+    /** Message page size, 0 loads all messages. */
+    @Param({"100", "0"})
+    public int pageSize;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSetup.initialize();
+        // messages are only saved, not loaded
+        BenchmarkSetup.fillDatabase(THREADS, MESSAGES_PER_THREAD);
+        Config.getInstance().setProperty(Config.MAIN_LOAD_PARALLEL, loadParallel);
+        Config.getInstance().setProperty(Config.MAIN_MESSAGE_PAGE, pageSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkSetup.destroy();
+    }
+
+    @Benchmark
+    public MessageList load() {
+        MessageList.getInstance().load();
+        return MessageList.getInstance();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+import org.kontalk.BenchmarkSetup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hot paths in the model: message content (de-)serialization and thread
+ * lookups.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ModelBenchmark {
+
+    /** Number of threads in the thread list. */
+    @Param({"100", "1000"})
+    public int threads;
+
+    private String mPlainJSON;
+    private String mAttachmentJSON;
+    private MessageContent mContent;
+
+    private final List<KonThread> mThreads = new ArrayList<>();
+    private final List<User> mUsers = new ArrayList<>();
+    private int mNext = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSetup.initialize();
+
+        mContent = new MessageContent("Hello, this is a typical short message.");
+        mPlainJSON = mContent.toJSONString();
+        MessageContent.Attachment attachment = new MessageContent.Attachment(
+                "https://beta.kontalk.net/download/abcdef0123456789",
+                "image/jpeg",
+                123456,
+                true);
+        mAttachmentJSON = new MessageContent("",
+                Optional.of(attachment),
+                "").toJSONString();
+
+        for (KonThread thread : BenchmarkSetup.fillDatabase(threads, 0)) {
+            mThreads.add(thread);
+            mUsers.add(thread.getUser().iterator().next());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkSetup.destroy();
+    }
+
+    @Benchmark
+    public MessageContent contentFromJSON() {
+        return MessageContent.fromJSONString(mPlainJSON);
+    }
+
+    @Benchmark
+    public MessageContent contentWithAttachmentFromJSON() {
+        return MessageContent.fromJSONString(mAttachmentJSON);
+    }
+
+    @Benchmark
+    public String contentToJSON() {
+        return mContent.toJSONString();
+    }
+
+    @Benchmark
+    public Optional<KonThread> threadById() {
+        return ThreadList.getInstance().get(mThreads.get(this.next()).getID());
+    }
+
+    @Benchmark
+    public KonThread threadByUser() {
+        return ThreadList.getInstance().get(mUsers.get(this.next()));
+    }
+
+    @Benchmark
+    public SortedSet<KonThread> allThreads() {
+        return ThreadList.getInstance().getAll();
+    }
+
+    private int next() {
+        mNext = (mNext + 1) % mThreads.size();
+        return mNext;
+    }
+}
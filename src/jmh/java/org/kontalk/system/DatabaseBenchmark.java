@@ -0,0 +1,133 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.kontalk.BenchmarkSetup;
+import org.kontalk.model.KonMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.MessageContent;
+import org.kontalk.model.MessageList;
+import org.kontalk.model.OutMessage;
+import org.kontalk.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Database writes and reads on a database file with a configurable number
+ * of messages.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    /** Number of messages in the database before the benchmark. */
+    @Param({"1000", "100000"})
+    public int messages;
+
+    /** Number of threads the messages are distributed on. */
+    @Param({"10"})
+    public int threads;
+
+    /** Number of messages in one page. */
+    @Param({"100"})
+    public int pageSize;
+
+    /** Cache prepared statements for writing; false is the baseline. */
+    @Param({"true", "false"})
+    public boolean statementCache;
+
+    private KonThread mThread;
+    private User mUser;
+    private OutMessage mMessage;
+    private String mPageWhere;
+    private String mPageOrder;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSetup.initialize();
+        Database.getInstance().setStatementCache(statementCache);
+        mThread = BenchmarkSetup.fillDatabase(threads, messages / threads)
+                .iterator().next();
+        mUser = mThread.getUser().iterator().next();
+
+        OutMessage.Builder builder = new OutMessage.Builder(mThread, mUser, false);
+        builder.content(new MessageContent("update me"));
+        mMessage = builder.build();
+
+        mPageWhere = KonMessage.COL_THREAD_ID + " == " + mThread.getID();
+        mPageOrder = KonMessage.COL_DATE + " DESC";
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkSetup.destroy();
+    }
+
+    /** Insert of a new message (Database.execInsert). */
+    @Benchmark
+    public OutMessage insertMessage() {
+        OutMessage.Builder builder = new OutMessage.Builder(mThread, mUser, false);
+        builder.content(new MessageContent("new message"));
+        return builder.build();
+    }
+
+    /** Update of all fields of a message (Database.execUpdate). */
+    @Benchmark
+    public void updateMessage() {
+        mMessage.save();
+    }
+
+    /** Select the newest page of messages in one thread. */
+    @Benchmark
+    public int selectPage() throws SQLException {
+        int count = 0;
+        try (ResultSet resultSet = Database.getInstance().execSelectWhereInsecure(
+                KonMessage.TABLE, mPageWhere, mPageOrder, pageSize)) {
+            while (resultSet.next()) {
+                resultSet.getString(KonMessage.COL_CONTENT);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Ranked full-text search over all messages of all threads. */
+    @Benchmark
+    public int search() {
+        return MessageList.getInstance().search("message 42", pageSize).size();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.view;
+
+import java.util.HashSet;
+import java.util.Observable;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Updates of a table view with many items, without rendering.
+ * The table is never shown, so this runs headless.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TableViewBenchmark {
+
+    /** Number of items in the view. */
+    @Param({"1000", "10000"})
+    public int items;
+
+    private ValueView mView;
+    private TreeSet<Value> mValues;
+    private int mNextID;
+
+    @Setup
+    public void setUp() {
+        mView = new ValueView();
+        mValues = new TreeSet<>();
+        for (mNextID = 0; mNextID < items; mNextID++)
+            mValues.add(new Value(mNextID));
+        mView.update(mValues);
+    }
+
+    /** Update without any change, e.g. after a value changed. */
+    @Benchmark
+    public void syncUnchanged() {
+        mView.update(mValues);
+    }
+
+    /** A new value at the end, e.g. a new message. */
+    @Benchmark
+    public void addAndRemoveLast() {
+        Value value = new Value(mNextID++);
+        mValues.add(value);
+        mView.update(mValues);
+        mValues.remove(value);
+        mView.update(mValues);
+    }
+
+    private static final class Value extends Observable implements Comparable<Value> {
+        private final int mID;
+
+        private Value(int id) {
+            mID = id;
+        }
+
+        @Override
+        public int compareTo(Value o) {
+            return Integer.compare(mID, o.mID);
+        }
+    }
+
+    private static final class ValueView extends TableView<ValueView.ValueItem, Value> {
+
+        private void update(SortedSet<Value> values) {
+            Set<ValueItem> newItems = new HashSet<>();
+            for (Value value : this.getMissing(values))
+                newItems.add(new ValueItem(value));
+            this.sync(values, newItems);
+        }
+
+        @Override
+        protected void updateOnEDT(Object arg) {
+        }
+
+        private final class ValueItem extends TableView<ValueItem, Value>.TableItem {
+
+            private ValueItem(Value value) {
+                super(value);
+            }
+
+            @Override
+            protected void render(int tableWidth, boolean isSelected) {
+            }
+
+            @Override
+            protected boolean contains(String search) {
+                return true;
+            }
+
+            @Override
+            protected void updateOnEDT(Object arg) {
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.kontalk;
 
 import org.kontalk.misc.KonException;
+import org.kontalk.misc.StartupProfile;
 import org.kontalk.system.Database;
 import java.io.File;
 import java.io.IOException;
@@ -48,6 +49,9 @@ import org.kontalk.view.View;
 public final class Kontalk {
     private final static Logger LOGGER = Logger.getLogger(Kontalk.class.getName());
 
+    // created first, measures the static initialization too
+    private final static StartupProfile STARTUP = new StartupProfile();
+
     public final static String VERSION = "3.0beta2";
     public final static String RES_PATH = "res/";
     private final static String CONFIG_DIR;
@@ -99,6 +103,8 @@ public final class Kontalk {
 
         // register provider
         PGPUtils.registerProvider();
+
+        STARTUP.phaseDone(StartupProfile.Phase.INIT);
     }
 
     private Kontalk(String[] args) {
@@ -118,8 +124,10 @@ public final class Kontalk {
 
     public void start() {
         Config.initialize(CONFIG_DIR + "/" + Config.CONF_NAME);
+        STARTUP.phaseDone(StartupProfile.Phase.CONFIG);
 
         Control control = new Control();
+        STARTUP.phaseDone(StartupProfile.Phase.CONTROL);
 
         Optional<View> optView = View.create(control);
         if (!optView.isPresent()) {
@@ -127,23 +135,50 @@ public final class Kontalk {
             return; // never reached
         }
         View view = optView.get();
+        STARTUP.phaseDone(StartupProfile.Phase.VIEW);
 
         try {
-            Database.initialize(CONFIG_DIR + "/" + Database.DB_NAME);
+            loadModel();
         } catch (KonException ex) {
             LOGGER.log(Level.SEVERE, "can't initialize database", ex);
             control.shutDown();
             return; // never reached
         }
 
+        view.init();
+        STARTUP.phaseDone(StartupProfile.Phase.VIEW_INIT);
+
+        control.launch();
+        STARTUP.phaseDone(StartupProfile.Phase.LAUNCH);
+
+        STARTUP.log();
+    }
+
+    /**
+     * Initialize configuration and database and load the model, without view
+     * and network. Used for measuring the startup time.
+     */
+    public static StartupProfile startHeadless() throws KonException {
+        Config.initialize(CONFIG_DIR + "/" + Config.CONF_NAME);
+        STARTUP.phaseDone(StartupProfile.Phase.CONFIG);
+
+        loadModel();
+
+        STARTUP.log();
+        return STARTUP;
+    }
+
+    private static void loadModel() throws KonException {
+        Database.initialize(CONFIG_DIR + "/" + Database.DB_NAME);
+        STARTUP.phaseDone(StartupProfile.Phase.DATABASE);
+
         // order matters!
         UserList.getInstance().load();
+        STARTUP.phaseDone(StartupProfile.Phase.USERS);
         ThreadList.getInstance().load();
+        STARTUP.phaseDone(StartupProfile.Phase.THREADS);
         MessageList.getInstance().load();
-
-        view.init();
-
-        control.launch();
+        STARTUP.phaseDone(StartupProfile.Phase.MESSAGES);
     }
 
     // parse optional arguments
@@ -154,6 +189,13 @@ public final class Kontalk {
         }
     }
 
+    /**
+     * Durations of the startup phases done so far.
+     */
+    public static StartupProfile getStartupProfile() {
+        return STARTUP;
+    }
+
     public static String getConfigDir() {
         return CONFIG_DIR;
     }
@@ -20,16 +20,22 @@ package org.kontalk.client;
 
 import java.util.logging.Logger;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -41,9 +47,16 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.kontalk.util.EncodingUtils;
 import org.kontalk.util.TrustUtils;
 
 /**
@@ -57,13 +70,29 @@ public class DownloadClient {
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
+    private static final int MAX_ATTEMPTS = 3;
+    /** Delay before the first retry, doubled for every further retry. */
+    private static final long RETRY_DELAY = 1000;
+    /** Name prefix of partial files (and their state files). */
+    private static final String PART_PREFIX = ".download_";
+    private static final String META_FILENAME = "filename";
+    private static final String META_ETAG = "etag";
+
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
     private final boolean mValidateCertificate;
     private final ProgressListener mListener;
 
-    private HttpRequestBase mCurrentRequest;
-    private CloseableHttpClient mHTTPClient;
+    /** Maximum number of pooled connections, in total and for each route. */
+    private static final int MAX_CONNECTIONS = 10;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+    /** HTTP client shared by all downloads, with connection pool. */
+    private static SharedClient HTTP_CLIENT = null;
+
+    private volatile HttpRequestBase mCurrentRequest;
+    private volatile boolean mAborted = false;
+    private final Object mAbortLock = new Object();
 
     public DownloadClient(PrivateKey privateKey,
             X509Certificate bridgeCert,
@@ -75,77 +104,176 @@ public class DownloadClient {
         mListener = listener;
     }
 
-    // TODO unused
+    /** Abort the current download, can be called from any thread. */
     public void abort() {
+        mAborted = true;
         if (mCurrentRequest != null)
             mCurrentRequest.abort();
+        synchronized (mAbortLock) {
+            mAbortLock.notifyAll();
+        }
         mListener.updateProgress(-3);
     }
 
     /**
      * Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header.
+     * Data is written to a partial file first. Failed transfers are retried,
+     * continuing at the received offset with a HTTP range request and with an
+     * increasing delay between attempts; the partial file is also kept for a
+     * later call with the same URL and ID. Partial data the server can't continue or
+     * that fails validation is discarded. The complete file is moved to its
+     * destination.
      * @param url URL of file
      * @param base base directory in which the download is saved
-     * @param listener listener for download progress
+     * @param id ID of the download (e.g. of the message), running downloads
+     * of the same URL must have different IDs
      * @return the absolute file path of the downloaded file, or an empty string
      * if the file could not be downloaded
      */
-    public String download(String url, File base) {
-        if (mHTTPClient == null) {
-            mHTTPClient = createHTTPClient(mPrivateKey, mCertificate, mValidateCertificate);
-            if (mHTTPClient == null)
-                return "";
+    public String download(String url, File base, int id) {
+        SharedClient client = acquireHTTPClient(mPrivateKey, mCertificate, mValidateCertificate);
+        if (client == null)
+            return "";
+        try {
+            return this.download(client.mClient, url, base, id);
+        } finally {
+            releaseHTTPClient(client);
         }
+    }
 
-        LOGGER.info("downloading file from URL=" + url+ "...");
-        mCurrentRequest = new HttpGet(url);
+    private String download(CloseableHttpClient client, String url, File base, int id) {
+        String partName = PART_PREFIX + id + "_" + hash(url);
+        File partFile = new File(base, partName + ".part");
+        File metaFile = new File(base, partName + ".meta");
 
-        // execute request
-        CloseableHttpResponse response;
-        try {
-            response = mHTTPClient.execute(mCurrentRequest);
-        } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't execute request", ex);
-            return "";
+        long delay = RETRY_DELAY;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !mAborted; attempt++) {
+            try {
+                return this.downloadOnce(client, url, base, partFile, metaFile);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "download attempt "+attempt+" failed", ex);
+            }
+            if (attempt < MAX_ATTEMPTS && !this.waitForRetry(delay))
+                break;
+            delay *= 2;
         }
+        return "";
+    }
 
-        try {
+    /**
+     * Wait before the next attempt.
+     * @return false if the download was aborted
+     */
+    private boolean waitForRetry(long delay) {
+        long end = System.currentTimeMillis() + delay;
+        synchronized (mAbortLock) {
+            long left;
+            while (!mAborted && (left = end - System.currentTimeMillis()) > 0) {
+                try {
+                    mAbortLock.wait(left);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !mAborted;
+    }
+
+    /**
+     * One download attempt.
+     * @return the file path or an empty string on permanent failure
+     * @throws IOException on failures worth retrying
+     */
+    private String downloadOnce(CloseableHttpClient client,
+            String url, File base, File partFile, File metaFile)
+            throws IOException {
+        // what we already have
+        Properties meta = loadMeta(metaFile);
+        long offset = partFile.isFile() && meta.containsKey(META_FILENAME) ?
+                partFile.length() :
+                0;
+
+        LOGGER.info("downloading file from URL=" + url+ ", offset="+offset+"...");
+        HttpGet request = new HttpGet(url);
+        if (offset > 0) {
+            request.setHeader("Range", "bytes=" + offset + "-");
+            // server sends everything if file changed
+            String etag = meta.getProperty(META_ETAG);
+            if (etag != null)
+                request.setHeader("If-Range", etag);
+        }
+        mCurrentRequest = request;
+
+        // execute request
+        try (CloseableHttpResponse response = client.execute(request)) {
             int code = response.getStatusLine().getStatusCode();
-            // HTTP/1.1 200 OK -- other codes should throw Exceptions
-            if (code != 200) {
+            boolean resumed;
+            long fileSize = -1;
+            if (code == 206 && offset > 0) {
+                // check that we get what we asked for
+                Header rangeHeader = response.getFirstHeader("Content-Range");
+                String range = rangeHeader != null ? rangeHeader.getValue() : "";
+                if (!range.startsWith("bytes " + offset + "-")) {
+                    LOGGER.warning("invalid content range: " + range);
+                    discard(partFile, metaFile);
+                    throw new IOException("invalid content range");
+                }
+                resumed = true;
+                try {
+                    fileSize = Long.parseLong(range.substring(range.indexOf('/') + 1));
+                } catch (NumberFormatException ex) {
+                    LOGGER.warning("unknown file size in range: " + range);
+                }
+            } else if (code == 200) {
+                resumed = false;
+            } else if (code == 416 && offset > 0) {
+                // partial file doesn't match, start again
+                LOGGER.warning("range not satisfiable, offset="+offset);
+                discard(partFile, metaFile);
+                throw new IOException("range not satisfiable");
+            } else {
                 LOGGER.warning("invalid response code: " + code);
+                discard(partFile, metaFile);
                 return "";
             }
 
             // get filename
-            Header dispHeader = response.getFirstHeader("Content-Disposition");
-            if (dispHeader == null) {
-                LOGGER.warning("no content header");
-                return "";
-            }
-            String filename = parseContentDisposition(dispHeader.getValue());
-            // never trust incoming data
-            filename = filename != null ? new File(filename).getName() : "";
-            if (filename.isEmpty()) {
-                LOGGER.warning("no filename in content: "+dispHeader.getValue());
-                return "";
+            String filename;
+            if (resumed) {
+                filename = meta.getProperty(META_FILENAME);
+            } else {
+                Header dispHeader = response.getFirstHeader("Content-Disposition");
+                if (dispHeader == null) {
+                    LOGGER.warning("no content header");
+                    return "";
+                }
+                filename = parseContentDisposition(dispHeader.getValue());
+                // never trust incoming data
+                filename = filename != null ? new File(filename).getName() : "";
+                if (filename.isEmpty()) {
+                    LOGGER.warning("no filename in content: "+dispHeader.getValue());
+                    return "";
+                }
             }
 
             // get file size
-            long s = -1;
-            Header lengthHeader = response.getFirstHeader("Content-Length");
-            if (lengthHeader == null) {
-                LOGGER.warning("no length header");
-            } else {
-                try {
-                    s = Long.parseLong(lengthHeader.getValue());
-                } catch (NumberFormatException ex) {
-                    LOGGER.log(Level.WARNING, "can' parse file size", ex);
+            if (!resumed) {
+                Header lengthHeader = response.getFirstHeader("Content-Length");
+                if (lengthHeader == null) {
+                    LOGGER.warning("no length header");
+                } else {
+                    try {
+                        fileSize = Long.parseLong(lengthHeader.getValue());
+                    } catch (NumberFormatException ex) {
+                        LOGGER.log(Level.WARNING, "can' parse file size", ex);
+                    }
                 }
             }
-            final long fileSize = s;
-            mListener.updateProgress(s < 0 ? -2 : 0);
+            final long startOffset = resumed ? offset : 0;
+            final long totalSize = fileSize;
+            mListener.updateProgress(totalSize < 0 ? -2 : (int) (startOffset * 100 / totalSize));
 
             // TODO should check for content-disposition parsing here
             // and choose another filename if necessary
@@ -158,47 +286,99 @@ public class DownloadClient {
             File destination = new File(base, filename);
             if (destination.exists()) {
                 LOGGER.warning("file already exists: "+destination.getAbsolutePath());
+                discard(partFile, metaFile);
                 return "";
             }
-            try (FileOutputStream out = new FileOutputStream(destination)){
+
+            if (!resumed) {
+                // new transfer, remember how to resume it
+                meta = new Properties();
+                meta.setProperty(META_FILENAME, filename);
+                Header etagHeader = response.getFirstHeader("ETag");
+                if (etagHeader != null)
+                    meta.setProperty(META_ETAG, etagHeader.getValue());
+                saveMeta(metaFile, meta);
+            }
+
+            try (FileOutputStream out = new FileOutputStream(partFile, resumed)){
                 CountingOutputStream cOut = new CountingOutputStream(out) {
                     @Override
                     protected synchronized void afterWrite(int n) {
-                        if (fileSize <= 0)
+                        if (totalSize <= 0)
                             return;
 
                         // inform listener
                         mListener.updateProgress(
-                                (int) (this.getByteCount() /(fileSize * 1.0) * 100));
+                                (int) ((startOffset + this.getByteCount()) / (totalSize * 1.0) * 100));
                     }
                 };
                 entity.writeTo(cOut);
-            } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "can't download file", ex);
+            }
+
+            if (totalSize > 0 && partFile.length() > totalSize) {
+                LOGGER.warning("file larger than expected: " + partFile.length() + "/" + totalSize);
+                discard(partFile, metaFile);
                 return "";
             }
+            if (totalSize > 0 && partFile.length() < totalSize)
+                throw new IOException("incomplete download: " + partFile.length() + "/" + totalSize);
+
+            // commit
+            Files.move(partFile.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            metaFile.delete();
 
             LOGGER.info("... download successful!");
             return destination.getAbsolutePath();
-        } finally {
-            try {
-                response.close();
-            } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "can't close response", ex);
-            }
         }
     }
 
-    private static CloseableHttpClient createHTTPClient(PrivateKey privateKey,
+    private static void discard(File partFile, File metaFile) {
+        partFile.delete();
+        metaFile.delete();
+    }
+
+    private static Properties loadMeta(File metaFile) {
+        Properties meta = new Properties();
+        if (!metaFile.isFile())
+            return meta;
+        try (FileInputStream in = new FileInputStream(metaFile)) {
+            meta.load(in);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't load download state", ex);
+        }
+        return meta;
+    }
+
+    private static void saveMeta(File metaFile, Properties meta) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(metaFile)) {
+            meta.store(out, null);
+        }
+    }
+
+    private static String hash(String url) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return EncodingUtils.bytesToHex(md.digest(url.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            LOGGER.log(Level.WARNING, "can't hash URL", ex);
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    /**
+     * Get the shared HTTP client for a download. The client is (re-)created
+     * if the SSL context for the arguments changed. Must be released with
+     * {@link #releaseHTTPClient} when the download is done.
+     */
+    private static synchronized SharedClient acquireHTTPClient(PrivateKey privateKey,
             X509Certificate certificate,
             boolean validateCertificate) {
-        //HttpClientBuilder clientBuilder = HttpClientBuilder.create();
-        HttpClientBuilder clientBuilder = HttpClients.custom();
+        SSLContext sslContext;
         try {
-            SSLContext sslContext = TrustUtils.getCustomSSLContext(privateKey,
+            // cached
+            sslContext = TrustUtils.getCustomSSLContext(privateKey,
                     certificate,
                     validateCertificate);
-            clientBuilder.setSslcontext(sslContext);
         }
         catch (KeyStoreException |
                 NoSuchAlgorithmException |
@@ -211,6 +391,50 @@ public class DownloadClient {
             return null;
         }
 
+        if (HTTP_CLIENT == null || sslContext != HTTP_CLIENT.mContext) {
+            if (HTTP_CLIENT != null) {
+                // closed when its running downloads are finished
+                HTTP_CLIENT.mReplaced = true;
+                closeIfUnused(HTTP_CLIENT);
+            }
+            HTTP_CLIENT = new SharedClient(createHTTPClient(sslContext), sslContext);
+        }
+        HTTP_CLIENT.mUsers++;
+        return HTTP_CLIENT;
+    }
+
+    private static synchronized void releaseHTTPClient(SharedClient client) {
+        client.mUsers--;
+        closeIfUnused(client);
+    }
+
+    private static void closeIfUnused(SharedClient client) {
+        if (!client.mReplaced || client.mUsers > 0)
+            return;
+
+        try {
+            client.mClient.close();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't close HTTP client", ex);
+        }
+    }
+
+    private static CloseableHttpClient createHTTPClient(SSLContext sslContext) {
+        //HttpClientBuilder clientBuilder = HttpClientBuilder.create();
+        HttpClientBuilder clientBuilder = HttpClients.custom();
+
+        // pooled connections are kept alive and reused
+        Registry<ConnectionSocketFactory> registry =
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build();
+        PoolingHttpClientConnectionManager connMgr =
+                new PoolingHttpClientConnectionManager(registry);
+        connMgr.setMaxTotal(MAX_CONNECTIONS);
+        connMgr.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        clientBuilder.setConnectionManager(connMgr);
+
         RequestConfig.Builder rcBuilder = RequestConfig.custom();
         // handle redirects :)
         rcBuilder.setRedirectsEnabled(true);
@@ -218,10 +442,6 @@ public class DownloadClient {
         rcBuilder.setExpectContinueEnabled(false);
         clientBuilder.setDefaultRequestConfig(rcBuilder.build());
 
-        // create connection manager
-        //ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
-
-        //return new DefaultHttpClient(connMgr, params);
         return clientBuilder.build();
     }
 
@@ -241,6 +461,20 @@ public class DownloadClient {
         else return null;
     }
 
+    /** A HTTP client and the number of downloads using it. */
+    private static final class SharedClient {
+        private final CloseableHttpClient mClient;
+        /** The SSL context the client was created with. */
+        private final SSLContext mContext;
+        private int mUsers = 0;
+        private boolean mReplaced = false;
+
+        private SharedClient(CloseableHttpClient client, SSLContext context) {
+            mClient = client;
+            mContext = context;
+        }
+    }
+
     public interface ProgressListener {
         void updateProgress(int percent);
     }
@@ -18,6 +18,8 @@
 
 package org.kontalk.crypto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -28,12 +30,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.security.SecureRandom;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.SignatureException;
 import java.text.ParseException;
 import java.util.Base64;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Optional;
 import java.util.logging.Level;
@@ -59,11 +63,7 @@ import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
 import org.bouncycastle.openpgp.PGPSignatureList;
 import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
-import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
-import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
-import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
-import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
-import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptorBuilder;
 import org.jivesoftware.smack.packet.Message;
 import org.kontalk.system.Downloader;
 import org.kontalk.client.KonMessageListener;
@@ -131,8 +131,15 @@ public final class Coder {
         //INVALID_TIMESTAMP,
     }
 
-    /** Buffer size for encryption. It should always be a power of 2. */
-    private static final int BUFFER_SIZE = 1 << 8;
+    /**
+     * Buffer size for encryption and decryption, also the size of partial
+     * packets. It should always be a power of 2.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Parsed public keys by user ID. */
+    private static final HashMap<Integer, PGPCoderKey> KEY_CACHE = new HashMap<>();
+    private static boolean CACHE_KEYS = true;
 
     private static class KeysResult {
         PersonalKey myKey = null;
@@ -140,9 +147,10 @@ public final class Coder {
         EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
     }
 
-    private static class DecryptionResult {
+    static class DecryptionResult {
         EnumSet<Coder.Error> errors = EnumSet.noneOf(Coder.Error.class);
-        Optional<? extends ByteArrayOutputStream> decryptedStream = Optional.empty();
+        /** All data was decrypted and written to the output stream. */
+        boolean decrypted = false;
         Signing signing = Signing.UNKNOWN;
     }
 
@@ -192,15 +200,15 @@ public final class Coder {
             plainText = cpim.toString().getBytes();
         }
 
+        CryptoBackend backend = CryptoBackend.get();
+
         // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
+        PGPDataEncryptorBuilder encryptor = backend.dataEncryptor(PGPEncryptedData.AES_192);
 
         // add public key recipients
         PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
         //for (PGPPublicKey rcpt : mRecipients)
-        encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(keys.otherKey.encryptKey));
+        encGen.addMethod(backend.keyEncryptionMethod(keys.otherKey.encryptKey));
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
@@ -215,7 +223,7 @@ public final class Coder {
             // setup signature generator
             int algo = keys.myKey.getPublicEncryptionKey().getAlgorithm();
             PGPSignatureGenerator sigGen = new PGPSignatureGenerator(
-                    new BcPGPContentSignerBuilder(algo, HashAlgorithmTags.SHA1));
+                    backend.contentSigner(algo, HashAlgorithmTags.SHA1));
             sigGen.init(PGPSignature.BINARY_DOCUMENT, keys.myKey.getPrivateEncryptionKey());
 
             PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
@@ -300,20 +308,22 @@ public final class Coder {
         }
         byte[] encryptedData = Base64.getDecoder().decode(encryptedContent);
         InputStream encryptedStream = new ByteArrayInputStream(encryptedData);
+        ByteArrayOutputStream plainStream = new ByteArrayOutputStream();
         DecryptionResult decResult = decryptAndVerify(encryptedStream,
-                keys.myKey,
+                plainStream,
+                keys.myKey.getPrivateEncryptionKey(),
                 keys.otherKey.encryptKey);
         EnumSet<Coder.Error> allErrors = decResult.errors;
         message.setSigning(decResult.signing);
 
         // parse
         ParsingResult parsingResult = null;
-        if (decResult.decryptedStream.isPresent()) {
+        if (decResult.decrypted) {
             // parse encrypted CPIM content
             String myUID = keys.myKey.getUserId();
             String senderUID = keys.otherKey.userID;
             String encrText = EncodingUtils.getString(
-                    decResult.decryptedStream.get().toByteArray(),
+                    plainStream.toByteArray(),
                     CPIMMessage.CHARSET);
             parsingResult = parseCPIM(encrText, myUID, senderUID);
             allErrors.addAll(parsingResult.errors);
@@ -358,16 +368,6 @@ public final class Coder {
         File baseDir = Downloader.getInstance().getBaseDir();
         File inFile = new File(baseDir, attachment.getFileName());
 
-        InputStream encryptedStream;
-        try {
-            encryptedStream = new FileInputStream(inFile);
-        } catch (FileNotFoundException ex) {
-            LOGGER.log(Level.WARNING,
-                    "attachment file not found: "+inFile.getAbsolutePath(),
-                    ex);
-            return;
-        }
-
         LOGGER.info("decrypting encrypted attachment...");
 
         // get keys
@@ -377,29 +377,55 @@ public final class Coder {
             return;
         }
 
+        String base = FilenameUtils.getBaseName(inFile.getName());
+        String ext = FilenameUtils.getExtension(inFile.getName());
+        File outFile = new File(baseDir, base + "_dec." + ext);
+        if (outFile.exists()) {
+            LOGGER.warning("encrypted file already exists: "+outFile.getAbsolutePath());
+            return;
+        }
+        // decrypted data is streamed to a temporary file first, it is only
+        // renamed to the final file if everything was verified
+        File tmpFile = new File(baseDir, outFile.getName() + ".part");
+
         // decrypt
-        DecryptionResult decResult = decryptAndVerify(encryptedStream, keys.myKey, keys.otherKey.encryptKey);
-        message.setAttachmentErrors(keys.errors);
+        DecryptionResult decResult;
+        try (InputStream encryptedStream = new BufferedInputStream(new FileInputStream(inFile));
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+            decResult = decryptAndVerify(encryptedStream,
+                    out,
+                    keys.myKey.getPrivateEncryptionKey(),
+                    keys.otherKey.encryptKey);
+        } catch (FileNotFoundException ex) {
+            LOGGER.log(Level.WARNING,
+                    "can't open attachment file: "+inFile.getAbsolutePath(),
+                    ex);
+            tmpFile.delete();
+            return;
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't write decrypted file", ex);
+            tmpFile.delete();
+            return;
+        }
+        EnumSet<Coder.Error> allErrors = keys.errors;
+        allErrors.addAll(decResult.errors);
+        message.setAttachmentErrors(allErrors);
         message.setAttachmentSigning(decResult.signing);
 
         // check for errors
-        if (!decResult.decryptedStream.isPresent()) {
+        if (!decResult.decrypted ||
+                decResult.errors.contains(Error.INVALID_SIGNATURE) ||
+                decResult.errors.contains(Error.INVALID_INTEGRITY)) {
             LOGGER.info("attachment decryption failed");
+            tmpFile.delete();
             return;
         }
 
-        // save encrypted data
-        String base = FilenameUtils.getBaseName(inFile.getName());
-        String ext = FilenameUtils.getExtension(inFile.getName());
-        File outFile = new File(baseDir, base + "_dec." + ext);
-        if (outFile.exists()) {
-            LOGGER.warning("encrypted file already exists: "+outFile.getAbsolutePath());
-            return;
-        }
-        try (FileOutputStream out = new FileOutputStream(outFile)){
-            out.write(decResult.decryptedStream.get().toByteArray());
+        try {
+            Files.move(tmpFile.toPath(), outFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't write encrypted file", ex);
+            LOGGER.log(Level.WARNING, "can't move decrypted file", ex);
+            tmpFile.delete();
             return;
         }
 
@@ -408,6 +434,46 @@ public final class Coder {
         LOGGER.info("attachment decryption successful");
     }
 
+    /**
+     * Get the parsed public key of a user. Keys are cached, entries are only
+     * valid for the fingerprint the user has.
+     */
+    private static Optional<PGPCoderKey> getKey(User user) {
+        synchronized (KEY_CACHE) {
+            PGPCoderKey key = KEY_CACHE.get(user.getID());
+            if (key != null && key.fingerprint.equals(user.getFingerprint()))
+                return Optional.of(key);
+        }
+        Optional<PGPCoderKey> optKey = PGPUtils.readPublicKey(user.getKey());
+        if (optKey.isPresent()) {
+            synchronized (KEY_CACHE) {
+                if (CACHE_KEYS)
+                    KEY_CACHE.put(user.getID(), optKey.get());
+            }
+        }
+        return optKey;
+    }
+
+    /**
+     * Enable or disable caching of parsed public keys. If disabled, the key
+     * of a user is parsed for every message. For benchmarks only.
+     */
+    static void setKeyCache(boolean enabled) {
+        synchronized (KEY_CACHE) {
+            CACHE_KEYS = enabled;
+            KEY_CACHE.clear();
+        }
+    }
+
+    /**
+     * Remove the cached public key of a user, call this if the key changed.
+     */
+    public static void invalidateKey(User user) {
+        synchronized (KEY_CACHE) {
+            KEY_CACHE.remove(user.getID());
+        }
+    }
+
     private static KeysResult getKeys(User user) {
         KeysResult result = new KeysResult();
 
@@ -425,7 +491,7 @@ public final class Coder {
             return result;
         }
 
-        Optional<PGPCoderKey> optKey = PGPUtils.readPublicKey(user.getKey());
+        Optional<PGPCoderKey> optKey = getKey(user);
         if (!optKey.isPresent()) {
             LOGGER.warning("can't get sender key");
             result.errors.add(Error.INVALID_KEY);
@@ -436,17 +502,21 @@ public final class Coder {
         return result;
     }
 
-    private static DecryptionResult decryptAndVerify(InputStream encryptedStream,
-            PersonalKey myKey,
+    /**
+     * Decrypt and verify data. The decrypted data is written to the output
+     * stream while reading, with constant memory usage.
+     */
+    static DecryptionResult decryptAndVerify(InputStream encryptedStream,
+            OutputStream outputStream,
+            PGPPrivateKey myKey,
             PGPPublicKey senderKey) {
         // note: the signature is inside the encrypted data
 
         DecryptionResult result = new DecryptionResult();
+        CryptoBackend backend = CryptoBackend.get();
 
         PGPObjectFactory pgpFactory = new PGPObjectFactory(encryptedStream);
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
         try { // catch all IO and PGP exceptions
 
             // the first object might be a PGP marker packet
@@ -466,14 +536,14 @@ public final class Coder {
             Iterator<?> it = encDataList.getEncryptedDataObjects();
             PGPPrivateKey sKey = null;
             PGPPublicKeyEncryptedData pbe = null;
-            long myKeyID = myKey.getPrivateEncryptionKey().getKeyID();
+            long myKeyID = myKey.getKeyID();
             while (sKey == null && it.hasNext()) {
                 Object i = it.next();
                 if (!(i instanceof PGPPublicKeyEncryptedData))
                     continue;
                 pbe = (PGPPublicKeyEncryptedData) i;
                 if (pbe.getKeyID() == myKeyID)
-                    sKey = myKey.getPrivateEncryptionKey();
+                    sKey = myKey;
             }
             if (sKey == null || pbe == null) {
                 LOGGER.warning("private key for message not found");
@@ -481,7 +551,7 @@ public final class Coder {
                 return result;
             }
 
-            InputStream clear = pbe.getDataStream(new BcPublicKeyDataDecryptorFactory(sKey));
+            InputStream clear = pbe.getDataStream(backend.dataDecryptor(sKey));
 
             PGPObjectFactory plainFactory = new PGPObjectFactory(clear);
 
@@ -512,7 +582,7 @@ public final class Coder {
                     result.errors.add(Error.INVALID_SIGNATURE_DATA);
                 } else {
                     ops = signatureList.get(0);
-                    ops.init(new BcPGPContentVerifierBuilderProvider(), senderKey);
+                    ops.init(backend.contentVerifier(), senderKey);
                 }
                 object = pgpFact.nextObject(); // nullable
             } else {
@@ -528,18 +598,20 @@ public final class Coder {
 
             PGPLiteralData ld = (PGPLiteralData) object;
             InputStream unc = ld.getInputStream();
-            int ch;
-            while ((ch = unc.read()) >= 0) {
-                outputStream.write(ch);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = unc.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, len);
                 if (ops != null)
                     try {
-                        ops.update((byte) ch);
+                        ops.update(buffer, 0, len);
                     } catch (SignatureException ex) {
                         LOGGER.log(Level.WARNING, "can't read signature", ex);
                 }
             }
+            outputStream.flush();
 
-            result.decryptedStream = Optional.of(outputStream);
+            result.decrypted = true;
 
             if (ops != null) {
                 result = verifySignature(result, pgpFact, ops);
@@ -0,0 +1,145 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.logging.Logger;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.operator.PGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.PGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.PGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.PublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.PublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyDataDecryptorFactoryBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePublicKeyKeyEncryptionMethodGenerator;
+import org.kontalk.system.Config;
+
+/**
+ * Implementations of the PGP operations used by the {@link Coder}. The
+ * output of all backends is compatible.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public enum CryptoBackend {
+    /** Bouncy Castle lightweight API, pure Java. */
+    BC {
+        @Override
+        PGPDataEncryptorBuilder dataEncryptor(int algorithm) {
+            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(algorithm);
+            encryptor.setWithIntegrityPacket(true);
+            encryptor.setSecureRandom(new SecureRandom());
+            return encryptor;
+        }
+        @Override
+        PublicKeyKeyEncryptionMethodGenerator keyEncryptionMethod(PGPPublicKey key) {
+            return new BcPublicKeyKeyEncryptionMethodGenerator(key);
+        }
+        @Override
+        PGPContentSignerBuilder contentSigner(int keyAlgorithm, int hashAlgorithm) {
+            return new BcPGPContentSignerBuilder(keyAlgorithm, hashAlgorithm);
+        }
+        @Override
+        PGPContentVerifierBuilderProvider contentVerifier() {
+            return new BcPGPContentVerifierBuilderProvider();
+        }
+        @Override
+        PublicKeyDataDecryptorFactory dataDecryptor(PGPPrivateKey key) {
+            return new BcPublicKeyDataDecryptorFactory(key);
+        }
+    },
+    /**
+     * Java Cryptography Extension. Symmetric encryption and hashing use the
+     * platform providers which are hardware accelerated on most JVMs, public
+     * key operations use the registered providers.
+     */
+    JCE {
+        @Override
+        PGPDataEncryptorBuilder dataEncryptor(int algorithm) {
+            JcePGPDataEncryptorBuilder encryptor = new JcePGPDataEncryptorBuilder(algorithm);
+            encryptor.setWithIntegrityPacket(true);
+            encryptor.setSecureRandom(new SecureRandom());
+            if (CIPHER_PROVIDER != null)
+                encryptor.setProvider(CIPHER_PROVIDER);
+            return encryptor;
+        }
+        @Override
+        PublicKeyKeyEncryptionMethodGenerator keyEncryptionMethod(PGPPublicKey key) {
+            return new JcePublicKeyKeyEncryptionMethodGenerator(key);
+        }
+        @Override
+        PGPContentSignerBuilder contentSigner(int keyAlgorithm, int hashAlgorithm) {
+            JcaPGPContentSignerBuilder signer =
+                    new JcaPGPContentSignerBuilder(keyAlgorithm, hashAlgorithm);
+            if (DIGEST_PROVIDER != null)
+                signer.setDigestProvider(DIGEST_PROVIDER);
+            return signer;
+        }
+        @Override
+        PGPContentVerifierBuilderProvider contentVerifier() {
+            return new JcaPGPContentVerifierBuilderProvider();
+        }
+        @Override
+        PublicKeyDataDecryptorFactory dataDecryptor(PGPPrivateKey key) {
+            JcePublicKeyDataDecryptorFactoryBuilder builder =
+                    new JcePublicKeyDataDecryptorFactoryBuilder();
+            if (CIPHER_PROVIDER != null)
+                builder.setContentProvider(CIPHER_PROVIDER);
+            return builder.build(key);
+        }
+    };
+
+    private final static Logger LOGGER = Logger.getLogger(CryptoBackend.class.getName());
+
+    // Bouncy Castle is registered as first provider, select the platform
+    // providers explicitly; null if not available
+    private final static Provider CIPHER_PROVIDER = Security.getProvider("SunJCE");
+    private final static Provider DIGEST_PROVIDER = Security.getProvider("SUN");
+
+    /** Builder for symmetric data encryption, with integrity packet. */
+    abstract PGPDataEncryptorBuilder dataEncryptor(int algorithm);
+
+    abstract PublicKeyKeyEncryptionMethodGenerator keyEncryptionMethod(PGPPublicKey key);
+
+    abstract PGPContentSignerBuilder contentSigner(int keyAlgorithm, int hashAlgorithm);
+
+    abstract PGPContentVerifierBuilderProvider contentVerifier();
+
+    abstract PublicKeyDataDecryptorFactory dataDecryptor(PGPPrivateKey key);
+
+    /** Get the backend selected in the configuration. */
+    public static CryptoBackend get() {
+        String name = Config.getInstance().getString(Config.MAIN_CRYPTO_BACKEND);
+        try {
+            return CryptoBackend.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            LOGGER.warning("unknown crypto backend: "+name);
+            return BC;
+        }
+    }
+}
@@ -50,6 +50,8 @@ public final class PersonalKey {
     private final PGPKeyPair mEncryptKey;
     /** X.509 bridge certificate. */
     private final X509Certificate mBridgeCert;
+    /** Private key for bridge certificate, converted on first use. */
+    private PrivateKey mBridgePrivateKey = null;
 
     private PersonalKey(PGPKeyPair signKp, PGPKeyPair encryptKp, X509Certificate bridgeCert) {
         mSignKey = signKp;
@@ -69,8 +71,10 @@ public final class PersonalKey {
         return mBridgeCert;
     }
 
-    public PrivateKey getBridgePrivateKey() throws PGPException {
-    	return PGPUtils.convertPrivateKey(mSignKey.getPrivateKey());
+    public synchronized PrivateKey getBridgePrivateKey() throws PGPException {
+        if (mBridgePrivateKey == null)
+            mBridgePrivateKey = PGPUtils.convertPrivateKey(mSignKey.getPrivateKey());
+        return mBridgePrivateKey;
     }
 
     /** Returns the first user ID on the key that matches the given network. */
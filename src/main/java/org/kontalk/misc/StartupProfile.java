@@ -0,0 +1,108 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.misc;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Durations of the application startup phases.
+ * A phase starts when the previous one is done, the first phase starts when
+ * the profile is created.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public final class StartupProfile {
+    private final static Logger LOGGER = Logger.getLogger(StartupProfile.class.getName());
+
+    /** Startup phases, in execution order. */
+    public static enum Phase {
+        /** Static initialization: translation, logging, crypto provider. */
+        INIT,
+        CONFIG,
+        CONTROL,
+        VIEW,
+        DATABASE,
+        USERS,
+        THREADS,
+        MESSAGES,
+        VIEW_INIT,
+        LAUNCH
+    };
+
+    // duration of phases in nanoseconds
+    private final EnumMap<Phase, Long> mDurations = new EnumMap<>(Phase.class);
+    private final long mJVMStartup;
+    private long mLast;
+
+    public StartupProfile() {
+        mLast = System.nanoTime();
+        mJVMStartup = System.currentTimeMillis() -
+                ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * Mark a phase as done. Its duration is the time since the previous
+     * phase was done.
+     */
+    public synchronized void phaseDone(Phase phase) {
+        long now = System.nanoTime();
+        mDurations.put(phase, now - mLast);
+        mLast = now;
+    }
+
+    /**
+     * Durations of all phases done so far, in milliseconds.
+     */
+    public synchronized Map<Phase, Long> getDurations() {
+        EnumMap<Phase, Long> durations = new EnumMap<>(Phase.class);
+        for (Map.Entry<Phase, Long> entry : mDurations.entrySet())
+            durations.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        return durations;
+    }
+
+    /** Sum of all phases done so far, in milliseconds. */
+    public synchronized long getTotal() {
+        long total = 0;
+        for (long duration : mDurations.values())
+            total += duration;
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+
+    /**
+     * Time from JVM start until this profile was created, in milliseconds.
+     */
+    public long getJVMStartup() {
+        return mJVMStartup;
+    }
+
+    public void log() {
+        LOGGER.info("startup: " + this);
+    }
+
+    @Override
+    public String toString() {
+        String s = "jvm=" + mJVMStartup + "ms, total=" + this.getTotal() + "ms";
+        for (Map.Entry<Phase, Long> entry : this.getDurations().entrySet())
+            s += ", " + entry.getKey().name().toLowerCase() + "=" + entry.getValue() + "ms";
+        return s;
+    }
+}
@@ -42,13 +42,13 @@ public final class InMessage extends KonMessage {
 
     public void setSigning(Coder.Signing signing) {
         mCoderStatus.setSigning(signing);
-        this.save();
+        this.save(Part.CODER_STATUS);
     }
 
     public void setDecryptedContent(MessageContent decryptedContent) {
         mContent.setDecryptedContent(decryptedContent);
         mCoderStatus.setDecrypted();
-        this.save();
+        this.save(Part.DECRYPTED, Part.CODER_STATUS);
         this.changed(null);
     }
 
@@ -58,7 +58,7 @@ public final class InMessage extends KonMessage {
             return;
 
         attachment.setFileName(fileName);
-        this.save();
+        this.save(Part.ATTACHMENT);
         // only tell view if file not encrypted
         if (!attachment.getCoderStatus().isEncrypted())
             this.changed(attachment);
@@ -70,7 +70,7 @@ public final class InMessage extends KonMessage {
             return;
 
         attachment.getCoderStatus().setSecurityErrors(errors);
-        this.save();
+        this.save(Part.ATTACHMENT);
     }
 
     public void setAttachmentSigning(Coder.Signing signing) {
@@ -79,7 +79,7 @@ public final class InMessage extends KonMessage {
             return;
 
         attachment.getCoderStatus().setSigning(signing);
-        this.save();
+        this.save(Part.ATTACHMENT);
     }
 
     public void setAttachmentDownloadProgress(int p) {
@@ -98,7 +98,7 @@ public final class InMessage extends KonMessage {
             return;
 
         attachment.setDecryptedFilename(filename);
-        this.save();
+        this.save(Part.ATTACHMENT);
         this.changed(attachment);
     }
 
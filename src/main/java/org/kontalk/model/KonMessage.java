@@ -18,6 +18,7 @@
 
 package org.kontalk.model;
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -29,7 +30,6 @@ import java.util.Observable;
 import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.kontalk.system.Database;
 import org.kontalk.crypto.Coder;
@@ -79,7 +79,49 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
     public static final String COL_SIGN_STAT = "signing_status";
     public static final String COL_COD_ERR = "coder_errors";
     public static final String COL_SERV_ERR = "server_error";
+    public static final String COL_SERV_ERR_COND = "server_error_condition";
+    public static final String COL_SERV_ERR_TEXT = "server_error_text";
     public static final String COL_SERV_DATE = "server_date";
+    // content columns, see MessageContent
+    public static final String COL_PLAIN_TEXT = "plain_text";
+    public static final String COL_ENCR_DATA = "encrypted_data";
+    public static final String COL_DEC_TEXT = "decrypted_text";
+    public static final String COL_ATT_URL = "att_url";
+    public static final String COL_ATT_MIME = "att_mime";
+    public static final String COL_ATT_LENGTH = "att_length";
+    public static final String COL_ATT_FILE = "att_file_name";
+    public static final String COL_ATT_ENCR_STAT = "att_encryption_status";
+    public static final String COL_ATT_SIGN_STAT = "att_signing_status";
+    public static final String COL_ATT_COD_ERR = "att_coder_errors";
+    public static final String COL_ATT_DEC = "att_decrypted";
+    /** Content columns in table order, new in database version 4. */
+    public static final String[] CONTENT_COLUMNS = {
+        COL_PLAIN_TEXT, COL_ENCR_DATA, COL_DEC_TEXT,
+        COL_ATT_URL, COL_ATT_MIME, COL_ATT_LENGTH, COL_ATT_FILE,
+        COL_ATT_ENCR_STAT, COL_ATT_SIGN_STAT, COL_ATT_COD_ERR, COL_ATT_DEC
+    };
+    /** Column definitions of the content columns, same order. */
+    public static final String[] CONTENT_COLUMN_TYPES = {
+        // plain message text
+        "TEXT NOT NULL DEFAULT ''",
+        // encrypted content, raw
+        "BLOB",
+        // text of decrypted content, NULL if not decrypted
+        "TEXT",
+        // attachment URL, NULL if there is no attachment
+        "TEXT",
+        "TEXT",
+        // size of (decrypted) file
+        "INTEGER",
+        // file name of downloaded file
+        "TEXT",
+        // enums and enum set of attachment coder status
+        "INTEGER",
+        "INTEGER",
+        "INTEGER",
+        // boolean, attachment is part of the decrypted content
+        "INTEGER"
+    };
     public final static String CREATE_TABLE = "( " +
             "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
             COL_THREAD_ID + " INTEGER NOT NULL, " +
@@ -97,7 +139,8 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             COL_DATE + " INTEGER NOT NULL, " +
             // enum, server receipt status
             COL_REC_STAT + " INTEGER NOT NULL, " +
-            // message content in JSON format
+            // message content in JSON format, only used before version 4
+            // and empty for converted messages
             COL_CONTENT + " TEXT NOT NULL, " +
             // enum, determines if content is encrypted
             COL_ENCR_STAT + " INTEGER NOT NULL, " +
@@ -106,10 +149,14 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             COL_SIGN_STAT + " INTEGER NOT NULL, " +
             // enum set, encryption and signing errors of content
             COL_COD_ERR + " INTEGER NOT NULL, " +
-            // optional error reply in JSON format
+            // optional error reply in JSON format, only used before version 6
             COL_SERV_ERR + " TEXT, " +
             // unix time, transmission/delay timestamp
             COL_SERV_DATE + " INTEGER, " +
+            contentColumnsDefinition() +
+            // optional error reply, NULL if there is none
+            COL_SERV_ERR_COND + " TEXT, " +
+            COL_SERV_ERR_TEXT + " TEXT, " +
             // if this combinations is equal we consider messages to be equal
             // (see .equals())
             "UNIQUE (direction, jid, xmpp_id, date), " +
@@ -117,6 +164,61 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             "FOREIGN KEY (user_id) REFERENCES "+User.TABLE+" (_id) " +
             ")";
 
+    // full-text search index over the message text, the document ID is the
+    // message ID; kept in sync by triggers
+    public static final String TABLE_FTS = "messages_fts";
+    public static final String COL_FTS_TEXT = "text";
+    public static final String CREATE_TABLE_FTS = "USING fts4(" +
+            COL_FTS_TEXT + ", tokenize=unicode61)";
+    // indexed is the decrypted text if present, else the plain text
+    private static final String FTS_TEXT =
+            "coalesce(" + COL_DEC_TEXT + ", " + COL_PLAIN_TEXT + ")";
+    private static final String FTS_NEW_TEXT =
+            "coalesce(new." + COL_DEC_TEXT + ", new." + COL_PLAIN_TEXT + ")";
+    private static final String FTS_INSERT_NEW = "INSERT INTO " + TABLE_FTS +
+            " (docid, " + COL_FTS_TEXT + ") SELECT new._id, " + FTS_NEW_TEXT +
+            " WHERE " + FTS_NEW_TEXT + " != ''; ";
+    private static final String FTS_DELETE_OLD = "DELETE FROM " + TABLE_FTS +
+            " WHERE docid = old._id; ";
+    public static final String[] CREATE_TRIGGERS_FTS = {
+        "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_insert AFTER INSERT ON " +
+                TABLE + " BEGIN " + FTS_INSERT_NEW + "END",
+        // status updates don't change the text, ignore them
+        "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_update AFTER UPDATE OF " +
+                COL_PLAIN_TEXT + ", " + COL_DEC_TEXT + " ON " + TABLE +
+                " WHEN old." + COL_PLAIN_TEXT + " IS NOT new." + COL_PLAIN_TEXT +
+                " OR old." + COL_DEC_TEXT + " IS NOT new." + COL_DEC_TEXT +
+                " BEGIN " + FTS_DELETE_OLD + FTS_INSERT_NEW + "END",
+        "CREATE TRIGGER IF NOT EXISTS " + TABLE_FTS + "_delete AFTER DELETE ON " +
+                TABLE + " BEGIN " + FTS_DELETE_OLD + "END"
+    };
+    /** Index all existing messages. */
+    public static final String FILL_FTS = "INSERT INTO " + TABLE_FTS +
+            " (docid, " + COL_FTS_TEXT + ") SELECT _id, " + FTS_TEXT + " FROM " +
+            TABLE + " WHERE " + FTS_TEXT + " != ''";
+
+    // used for loading the newest messages of a thread page by page
+    public static final String INDEX_THREAD_DATE = "messages_thread_date";
+    public static final String CREATE_INDEX_THREAD_DATE = "ON " + TABLE +
+            " (" + COL_THREAD_ID + ", " + COL_DATE + ")";
+
+    /** Parts of a saved message that can change, see save(Part, Part...). */
+    protected enum Part {
+        /** Receipt status, server date and server error. */
+        STATUS,
+        /** Coder status of the content. */
+        CODER_STATUS,
+        /** Decrypted content, replaces the encrypted data. */
+        DECRYPTED,
+        /** Attachment status and file names. */
+        ATTACHMENT
+    }
+    // first content columns written when saving these parts
+    private static final int DECRYPTED_COLUMNS =
+            Arrays.asList(CONTENT_COLUMNS).indexOf(COL_ENCR_DATA);
+    private static final int ATTACHMENT_COLUMNS =
+            Arrays.asList(CONTENT_COLUMNS).indexOf(COL_ATT_URL);
+
     private int mID;
     private final KonThread mThread;
     private final Direction mDir;
@@ -137,6 +239,9 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
 
     protected ServerError mServerError;
 
+    // content not converted yet, saved in JSON format
+    private boolean mJSONContent;
+
     protected KonMessage(Builder builder) {
         mID = builder.mID;
         mThread = builder.mThread;
@@ -151,6 +256,7 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
         mContent = builder.mContent;
         mCoderStatus = builder.mCoderStatus;
         mServerError = builder.mServerError;
+        mJSONContent = builder.mJSONContent;
 
         if (mJID == null ||
                 mXMPPID == null ||
@@ -218,7 +324,7 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
 
     public void setSecurityErrors(EnumSet<Coder.Error> errors) {
         mCoderStatus.setSecurityErrors(errors);
-        this.save();
+        this.save(Part.CODER_STATUS);
     }
 
     /**
@@ -280,14 +386,16 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
         values.add(Database.setString(mXMPPID));
         values.add(mDate);
         values.add(mReceiptStatus);
-        // i simply don't like to save all possible content explicitly in the
-        // database, so we use JSON here
-        values.add(mContent.toJSONString());
+        values.add("");
         values.add(mCoderStatus.getEncryption());
         values.add(mCoderStatus.getSigning());
         values.add(mCoderStatus.getErrors());
-        values.add(mServerError.toJSON());
+        // legacy server error
+        values.add(null);
         values.add(mServerDate);
+        values.addAll(mContent.toColumnValues());
+        values.add(Database.setString(mServerError.condition));
+        values.add(Database.setString(mServerError.text));
 
         int id = db.execInsert(TABLE, values);
         if (id <= 0) {
@@ -306,15 +414,86 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             this.insert();
             return;
         }
-        Database db = Database.getInstance();
+        this.save(EnumSet.allOf(Part.class));
+    }
+
+    /**
+     * Save only the changed parts of this message to the database. The
+     * other columns, like the encrypted data, are not written again.
+     */
+    protected final void save(Part part, Part... parts) {
+        if (mID < 0) {
+            this.insert();
+            return;
+        }
+        this.save(EnumSet.of(part, parts));
+    }
+
+    private void save(EnumSet<Part> parts) {
+        Map<String, Object> set = new HashMap<>();
+        if (parts.contains(Part.STATUS)) {
+            set.put(COL_REC_STAT, mReceiptStatus);
+            set.put(COL_SERV_DATE, mServerDate);
+            set.put(COL_SERV_ERR_COND, Database.setString(mServerError.condition));
+            set.put(COL_SERV_ERR_TEXT, Database.setString(mServerError.text));
+        }
+        if (parts.contains(Part.CODER_STATUS)) {
+            set.put(COL_ENCR_STAT, mCoderStatus.getEncryption());
+            set.put(COL_SIGN_STAT, mCoderStatus.getSigning());
+            set.put(COL_COD_ERR, mCoderStatus.getErrors());
+        }
+        if (mJSONContent && (parts.contains(Part.DECRYPTED) ||
+                parts.contains(Part.ATTACHMENT))) {
+            // not converted yet, write all content and mark as converted
+            set.put(COL_CONTENT, "");
+            putContent(set, mContent, 0);
+            mJSONContent = false;
+        } else if (parts.contains(Part.DECRYPTED)) {
+            putContent(set, mContent, DECRYPTED_COLUMNS);
+        } else if (parts.contains(Part.ATTACHMENT)) {
+            putContent(set, mContent, ATTACHMENT_COLUMNS);
+        }
+        Database.getInstance().execUpdate(TABLE, set, mID);
+    }
+
+    private static void putContent(Map<String, Object> set,
+            MessageContent content,
+            int firstColumn) {
+        List<Object> values = content.toColumnValues();
+        for (int i = firstColumn; i < CONTENT_COLUMNS.length; i++)
+            set.put(CONTENT_COLUMNS[i], values.get(i));
+    }
+
+    /**
+     * Convert JSON content of a message saved before database version 4.
+     * @return the values for the content columns, including the emptied
+     * JSON content column
+     */
+    public static Map<String, Object> convertContent(String jsonContent) {
         Map<String, Object> set = new HashMap<>();
-        set.put(COL_REC_STAT, mReceiptStatus);
-        set.put(COL_CONTENT, mContent.toJSONString());
-        set.put(COL_ENCR_STAT, mCoderStatus.getEncryption());
-        set.put(COL_SIGN_STAT, mCoderStatus.getSigning());
-        set.put(COL_COD_ERR, mCoderStatus.getErrors());
-        set.put(COL_SERV_DATE, mServerDate);
-        db.execUpdate(TABLE, set, mID);
+        set.put(COL_CONTENT, "");
+        putContent(set, MessageContent.fromJSONString(jsonContent), 0);
+        return set;
+    }
+
+    /**
+     * Convert a JSON server error of a message saved before database
+     * version 6.
+     * @return the values for the server error columns
+     */
+    public static Map<String, Object> convertServerError(String jsonError) {
+        ServerError error = ServerError.fromJSON(jsonError);
+        Map<String, Object> set = new HashMap<>();
+        set.put(COL_SERV_ERR_COND, Database.setString(error.condition));
+        set.put(COL_SERV_ERR_TEXT, Database.setString(error.text));
+        return set;
+    }
+
+    private static String contentColumnsDefinition() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < CONTENT_COLUMNS.length; i++)
+            sb.append(CONTENT_COLUMNS[i]).append(" ").append(CONTENT_COLUMN_TYPES[i]).append(", ");
+        return sb.toString();
     }
 
     boolean delete() {
@@ -352,19 +531,12 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             this.text = text;
         }
 
-        private String toJSON() {
-            JSONObject json = new JSONObject();
-            EncodingUtils.putJSON(json, JSON_COND, condition);
-            EncodingUtils.putJSON(json, JSON_TEXT, text);
-            return json.toJSONString();
-        }
-
         @Override
         public String toString() {
-            return this.toJSON();
+            return "SERVERR:cond="+condition+",text="+text;
         }
 
-        static ServerError fromJSON(String jsonContent) {
+        private static ServerError fromJSON(String jsonContent) {
             Object obj = JSONValue.parse(jsonContent);
             Map<?, ?> map = (Map) obj;
             if (map == null) return new ServerError();
@@ -382,6 +554,7 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
         private final Date mDate;
 
         private ServerError mServerError = new ServerError();
+        private boolean mJSONContent = false;
 
         protected String mJID = null;
         protected String mXMPPID = null;
@@ -414,6 +587,7 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
         void receiptStatus(Status status) { mReceiptStatus = status; }
         void coderStatus(CoderStatus coderStatus) { mCoderStatus = coderStatus; }
         void serverError(ServerError error) { mServerError = error; }
+        void jsonContent() { mJSONContent = true; }
 
         KonMessage build() {
             if (mDir == Direction.IN)
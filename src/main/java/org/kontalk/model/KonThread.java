@@ -24,6 +24,7 @@ import java.sql.SQLException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -90,6 +91,9 @@ public final class KonThread extends Observable implements Comparable<KonThread>
 
     private ChatState mMyChatState;
 
+    // attachment files of the messages deleted with this thread
+    private List<String> mDeletedAttachments = Collections.emptyList();
+
     // used when creating a new thread
     KonThread(Set<User> user) {
         assert user != null;
@@ -161,7 +165,9 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         if (user.equals(mUserMap.keySet()))
             return;
 
+        Set<User> oldUser = new HashSet<>(mUserMap.keySet());
         this.setUserMap(user);
+        ThreadList.getInstance().userChanged(this, oldUser);
         this.changed(user);
     }
 
@@ -247,6 +253,29 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         return added;
     }
 
+    /**
+     * Add messages loaded from database in bulk, observers are not notified.
+     */
+    void addAll(SortedSet<KonMessage> messages) {
+        synchronized (mSet) {
+            if (mSet.isEmpty()) {
+                // fast, the sets have the same ordering
+                mSet.addAll(messages);
+                return;
+            }
+        }
+        // older messages are added one by one, with duplicate check
+        for (KonMessage message : messages)
+            this.add(message);
+    }
+
+    /**
+     * Notify other components that older messages were added to this thread.
+     */
+    void historyLoaded() {
+        this.changed(null);
+    }
+
     void save() {
         Database db = Database.getInstance();
         Map<String, Object> set = new HashMap<>();
@@ -273,7 +302,17 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         }
     }
 
+    /**
+     * File names of the attachments of all messages in this thread, set when
+     * the thread is deleted. The files are not needed anymore.
+     */
+    public List<String> getDeletedAttachments() {
+        return mDeletedAttachments;
+    }
+
     void delete() {
+        mDeletedAttachments = this.loadAttachments();
+
         // delete messages
         for (KonMessage message : mSet) {
             boolean deleted = message.delete();
@@ -281,10 +320,15 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         }
 
         Database db = Database.getInstance();
+        // delete messages not loaded from database
+        boolean deleted = db.execDeleteWhereInsecure(KonMessage.TABLE,
+                KonMessage.COL_THREAD_ID + " == " + mID);
+        if (!deleted) return;
+
         // delete receiver
         Map<Integer, Integer> dbReceiver = this.loadReceiver();
         for (int id : dbReceiver.values()) {
-            boolean deleted = db.execDelete(TABLE_RECEIVER, id);
+            deleted = db.execDelete(TABLE_RECEIVER, id);
             if (!deleted) return;
         }
 
@@ -292,24 +336,44 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         db.execDelete(TABLE, mID);
     }
 
-    private Map<Integer, Integer> loadReceiver() {
+    private List<String> loadAttachments() {
         Database db = Database.getInstance();
-        String where = "thread_id == " + mID;
-        Map<Integer, Integer> dbReceiver = new HashMap<>();
-        ResultSet resultSet;
+        String where = KonMessage.COL_THREAD_ID + " == " + mID +
+                " AND " + KonMessage.COL_ATT_FILE + " IS NOT NULL" +
+                " AND " + KonMessage.COL_ATT_FILE + " != ''";
+        final List<String> fileNames = new LinkedList<>();
         try {
-            resultSet = db.execSelectWhereInsecure(TABLE_RECEIVER, where);
+            // file names may have been set just before
+            db.execSelectOwnWrites(KonMessage.TABLE, where, new Database.RowReader() {
+                @Override
+                public void read(ResultSet resultSet) throws SQLException {
+                    while (resultSet.next()) {
+                        fileNames.add(resultSet.getString(KonMessage.COL_ATT_FILE));
+                    }
+                }
+            });
         } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't get receiver from db", ex);
-            return dbReceiver;
+            LOGGER.log(Level.WARNING, "can't get attachments from db", ex);
         }
+        return fileNames;
+    }
+
+    private Map<Integer, Integer> loadReceiver() {
+        Database db = Database.getInstance();
+        String where = "thread_id == " + mID;
+        final Map<Integer, Integer> dbReceiver = new HashMap<>();
         try {
-            while (resultSet.next()) {
-                dbReceiver.put(resultSet.getInt("user_id"), resultSet.getInt("_id"));
-            }
-            resultSet.close();
+            // receivers may have been inserted just before
+            db.execSelectOwnWrites(TABLE_RECEIVER, where, new Database.RowReader() {
+                @Override
+                public void read(ResultSet resultSet) throws SQLException {
+                    while (resultSet.next()) {
+                        dbReceiver.put(resultSet.getInt("user_id"), resultSet.getInt("_id"));
+                    }
+                }
+            });
         } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't get receiver", ex);
+            LOGGER.log(Level.WARNING, "can't get receiver from db", ex);
         }
         return dbReceiver;
     }
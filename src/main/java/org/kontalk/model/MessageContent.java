@@ -18,7 +18,10 @@
 
 package org.kontalk.model;
 
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Level;
@@ -50,6 +53,9 @@ public class MessageContent {
     private final static String JSON_ENC_CONTENT = "encrypted_content";
     private final static String JSON_DEC_CONTENT = "decrypted_content";
 
+    private final static Coder.Encryption[] ENCRYPTION_VALUES = Coder.Encryption.values();
+    private final static Coder.Signing[] SIGNING_VALUES = Coder.Signing.values();
+
     public MessageContent(String plainText) {
         this(plainText, Optional.<Attachment>empty(), "");
     }
@@ -140,6 +146,80 @@ public class MessageContent {
         return json.toJSONString();
     }
 
+    /**
+     * Values for the content columns of the message table, in the order of
+     * {@link KonMessage#CONTENT_COLUMNS}. Only one attachment is saved,
+     * the one of the decrypted content if present.
+     */
+    List<Object> toColumnValues() {
+        List<Object> values = new ArrayList<>(KonMessage.CONTENT_COLUMNS.length);
+        values.add(mPlainText);
+        values.add(mEncryptedContent.isEmpty() ?
+                null :
+                Base64.getDecoder().decode(mEncryptedContent));
+        values.add(mOptDecryptedContent.isPresent() ?
+                mOptDecryptedContent.get().mPlainText :
+                null);
+
+        Optional<Attachment> optAttachment = mOptAttachment;
+        boolean decrypted = false;
+        if (mOptDecryptedContent.isPresent() &&
+                mOptDecryptedContent.get().mOptAttachment.isPresent()) {
+            optAttachment = mOptDecryptedContent.get().mOptAttachment;
+            decrypted = true;
+        }
+        if (optAttachment.isPresent()) {
+            Attachment a = optAttachment.get();
+            values.add(a.mURL);
+            values.add(a.mMimeType);
+            values.add(a.mLength);
+            values.add(a.mFileName);
+            values.add(a.mCoderStatus.getEncryption());
+            values.add(a.mCoderStatus.getSigning());
+            values.add(a.mCoderStatus.getErrors());
+            values.add(decrypted);
+        } else {
+            while (values.size() < KonMessage.CONTENT_COLUMNS.length)
+                values.add(null);
+        }
+        return values;
+    }
+
+    /**
+     * Create content from the content columns of a message row.
+     */
+    static MessageContent fromColumns(MessageRow row) {
+        String encryptedContent = row.encryptedData == null ?
+                "" :
+                Base64.getEncoder().encodeToString(row.encryptedData);
+
+        Optional<Attachment> optAttachment = Optional.empty();
+        boolean attachmentDecrypted = false;
+        if (row.attURL != null) {
+            Coder.Encryption encryption = ENCRYPTION_VALUES[row.attEncryption];
+            Coder.Signing signing = SIGNING_VALUES[row.attSigning];
+            EnumSet<Coder.Error> errors = EncodingUtils.intToEnumSet(Coder.Error.class,
+                    row.attCoderErrors);
+            optAttachment = Optional.of(new Attachment(row.attURL,
+                    row.attMime,
+                    row.attLength,
+                    row.attFileName,
+                    new CoderStatus(encryption, signing, errors)));
+            attachmentDecrypted = row.attDecrypted;
+        }
+
+        Optional<MessageContent> decryptedContent = Optional.empty();
+        if (row.decryptedText != null) {
+            decryptedContent = Optional.of(new MessageContent(row.decryptedText,
+                    attachmentDecrypted ? optAttachment : Optional.<Attachment>empty(),
+                    ""));
+        }
+        return new MessageContent(row.plainText,
+                attachmentDecrypted ? Optional.<Attachment>empty() : optAttachment,
+                encryptedContent,
+                decryptedContent);
+    }
+
     static MessageContent fromJSONString(String jsonContent) {
         Object obj = JSONValue.parse(jsonContent);
         try {
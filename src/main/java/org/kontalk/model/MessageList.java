@@ -22,15 +22,24 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Optional;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.kontalk.system.Config;
 import org.kontalk.system.Database;
 import org.kontalk.crypto.Coder;
 import org.kontalk.util.EncodingUtils;
@@ -42,102 +51,416 @@ import org.kontalk.util.EncodingUtils;
 public final class MessageList extends Observable {
     private final static Logger LOGGER = Logger.getLogger(MessageList.class.getName());
 
+    private final static KonMessage.Direction[] DIR_VALUES = KonMessage.Direction.values();
+    private final static KonMessage.Status[] STATUS_VALUES = KonMessage.Status.values();
+    private final static Coder.Encryption[] ENCRYPTION_VALUES = Coder.Encryption.values();
+    private final static Coder.Signing[] SIGNING_VALUES = Coder.Signing.values();
+
+    // after the value arrays, the constructor uses them
     private final static MessageList INSTANCE = new MessageList();
 
+    // number of rows decoded in one fork/join task; small enough that a
+    // page of the default size (100 rows) is decoded in parallel too
+    private final static int DECODE_CHUNK = 25;
+
     // the list is implemented as 'XMPP ID' to "list of messages" map, as equal
     // XMPP IDs are possible but assumed to happen rarely
-    // note: map and lists are not thread-safe on modification / iteration!
-    private final HashMap<String, List<KonMessage>> mMap = new HashMap<>();
+    // note: reading is lock-free, modifications are synchronized
+    private final ConcurrentHashMap<String, List<KonMessage>> mMap = new ConcurrentHashMap<>();
+
+    // thread ID to the oldest message loaded with paged loading, only for
+    // threads with older messages not loaded yet
+    private final HashMap<Integer, KonMessage> mPageStart = new HashMap<>();
+
+    // outgoing messages in this list by their receipt status
+    private final EnumMap<KonMessage.Status, Set<OutMessage>> mStatusIndex =
+            new EnumMap<>(KonMessage.Status.class);
 
     private MessageList() {
+        for (KonMessage.Status status : STATUS_VALUES)
+            mStatusIndex.put(status, new HashSet<OutMessage>());
     }
 
+    /**
+     * Load messages from database. If paged loading is enabled only the newest
+     * messages of each thread are loaded (and outgoing messages without a
+     * final receipt status), older messages are loaded on demand.
+     */
     public void load() {
+        int pageSize = Config.getInstance().getInt(Config.MAIN_MESSAGE_PAGE);
+        Database db = Database.getInstance();
+        if (pageSize <= 0) {
+            try (ResultSet resultSet = db.execSelectAll(KonMessage.TABLE)) {
+                this.loadMessages(resultSet);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't load messages from db", ex);
+            }
+            return;
+        }
+
+        for (KonThread thread : ThreadList.getInstance().getAll()) {
+            String where = KonMessage.COL_THREAD_ID + " == " + thread.getID();
+            this.loadPage(thread, where, pageSize);
+        }
+
+        // unfinished outgoing messages are needed for sending and receipts
+        String where = KonMessage.COL_DIR + " == " + KonMessage.Direction.OUT.ordinal() +
+                " AND " + KonMessage.COL_REC_STAT + " IN (" +
+                KonMessage.Status.PENDING.ordinal() + ", " +
+                KonMessage.Status.SENT.ordinal() + ")";
+        try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE, where)) {
+            this.loadMessages(resultSet);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load unfinished messages from db", ex);
+        }
+    }
+
+    /**
+     * Return if there are older messages for a thread in the database that
+     * are not loaded yet.
+     */
+    public synchronized boolean hasOlder(KonThread thread) {
+        return mPageStart.containsKey(thread.getID());
+    }
+
+    /**
+     * Load the next page of older messages of a thread from database.
+     * Observers of the thread are notified.
+     * @return number of messages added to the thread
+     */
+    public int loadOlder(KonThread thread) {
+        KonMessage start;
+        synchronized (this) {
+            start = mPageStart.get(thread.getID());
+        }
+        if (start == null)
+            return 0;
+
+        long date = start.getDate().getTime();
+        String where = KonMessage.COL_THREAD_ID + " == " + thread.getID() +
+                " AND (" + KonMessage.COL_DATE + " < " + date +
+                " OR (" + KonMessage.COL_DATE + " == " + date +
+                " AND _id < " + start.getID() + "))";
+        int pageSize = Config.getInstance().getInt(Config.MAIN_MESSAGE_PAGE);
+        int added = this.loadPage(thread, where, pageSize);
+        if (added > 0)
+            thread.historyLoaded();
+        return added;
+    }
+
+    /**
+     * Load older messages of a thread until a specific message is loaded.
+     * All messages from the message on (by date) up to the loaded ones are
+     * loaded at once, followed by one page of older messages before it.
+     * Observers of the thread are notified.
+     * Blocking, don't call this on the EDT.
+     * @return the message or empty if the thread doesn't contain it
+     */
+    public Optional<KonMessage> loadUntil(KonThread thread, int messageID) {
+        Optional<KonMessage> optMessage = getFromThread(thread, messageID);
+        if (optMessage.isPresent())
+            return optMessage;
+
+        KonMessage start;
+        synchronized (this) {
+            start = mPageStart.get(thread.getID());
+        }
+        if (start == null)
+            return Optional.empty();
+
         Database db = Database.getInstance();
-        KonMessage.Direction[] dirValues = KonMessage.Direction.values();
-        KonMessage.Status[] statusValues = KonMessage.Status.values();
-        Coder.Encryption[] encryptionValues = Coder.Encryption.values();
-        Coder.Signing[] signingValues = Coder.Signing.values();
-        try (ResultSet resultSet = db.execSelectAll(KonMessage.TABLE)) {
+        String threadWhere = KonMessage.COL_THREAD_ID + " == " + thread.getID();
+        long date;
+        try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE,
+                threadWhere + " AND _id == " + messageID)) {
+            if (!resultSet.next())
+                return Optional.empty();
+            date = resultSet.getLong(KonMessage.COL_DATE);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't get message from db", ex);
+            return Optional.empty();
+        }
+
+        long startDate = start.getDate().getTime();
+        String where = threadWhere +
+                " AND (" + KonMessage.COL_DATE + " > " + date +
+                " OR (" + KonMessage.COL_DATE + " == " + date +
+                " AND _id >= " + messageID + "))" +
+                " AND (" + KonMessage.COL_DATE + " < " + startDate +
+                " OR (" + KonMessage.COL_DATE + " == " + startDate +
+                " AND _id < " + start.getID() + "))";
+        try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE, where)) {
+            this.loadMessages(resultSet);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load messages from db", ex);
+            return Optional.empty();
+        }
+
+        optMessage = getFromThread(thread, messageID);
+        if (!optMessage.isPresent())
+            return optMessage;
+        synchronized (this) {
+            mPageStart.put(thread.getID(), optMessage.get());
+        }
+        // some context before the message, observers are notified
+        if (this.loadOlder(thread) == 0)
+            thread.historyLoaded();
+        return optMessage;
+    }
+
+    private static Optional<KonMessage> getFromThread(KonThread thread, int messageID) {
+        for (KonMessage message : thread.getMessages()) {
+            if (message.getID() == messageID)
+                return Optional.of(message);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Full-text search over the text of all messages in all threads, see
+     * {@link Database#execSearch}. Every word of the text is matched as
+     * prefix.
+     * @return the best matching hits, ordered by relevance
+     */
+    public List<SearchHit> search(String text, int limit) {
+        List<SearchHit> hits = new ArrayList<>();
+        // don't let the user write FTS syntax
+        StringBuilder query = new StringBuilder();
+        for (String word : text.replaceAll("[\"*]", " ").trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+            if (query.length() > 0)
+                query.append(' ');
+            query.append('"').append(word).append("*\"");
+        }
+        if (query.length() == 0)
+            return hits;
+
+        try (ResultSet resultSet = Database.getInstance().execSearch(query.toString(), limit)) {
             while (resultSet.next()) {
-                int id = resultSet.getInt("_id");
                 int threadID = resultSet.getInt(KonMessage.COL_THREAD_ID);
-                Optional<KonThread> optThread =
-                        ThreadList.getInstance().get(threadID);
+                Optional<KonThread> optThread = ThreadList.getInstance().get(threadID);
                 if (!optThread.isPresent()) {
                     LOGGER.warning("can't find thread, id:"+threadID);
                     continue;
                 }
-                int dirIndex = resultSet.getInt(KonMessage.COL_DIR);
-                KonMessage.Direction dir = dirValues[dirIndex];
-                int userID = resultSet.getInt(KonMessage.COL_USER_ID);
-                Optional<User> optUser =
-                        UserList.getInstance().get(userID);
-                if (!optUser.isPresent()) {
-                    LOGGER.warning("can't find user, id:"+userID);
+                hits.add(new SearchHit(optThread.get(),
+                        resultSet.getInt("_id"),
+                        new Date(resultSet.getLong(KonMessage.COL_DATE)),
+                        Database.getString(resultSet, "snippet")));
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't search messages", ex);
+        }
+        return hits;
+    }
+
+    /**
+     * Load the newest messages of a thread matching the 'where' clause and
+     * remember where the next (older) page starts.
+     */
+    private int loadPage(KonThread thread, String where, int pageSize) {
+        Database db = Database.getInstance();
+        String orderBy = KonMessage.COL_DATE + " DESC, _id DESC";
+        int before = thread.getMessages().size();
+        List<KonMessage> page;
+        try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE,
+                where,
+                orderBy,
+                pageSize)) {
+            page = this.loadMessages(resultSet);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load message page from db", ex);
+            return 0;
+        }
+
+        synchronized (this) {
+            if (page.size() < pageSize) {
+                // all loaded
+                mPageStart.remove(thread.getID());
+            } else {
+                // descending order, last one is the oldest
+                mPageStart.put(thread.getID(), page.get(page.size() - 1));
+            }
+        }
+        return thread.getMessages().size() - before;
+    }
+
+    /**
+     * Create messages for all rows in the result set and add them to their
+     * thread and this list. Messages already loaded are reused.
+     * Rows are read on this thread. If parallel loading is enabled, rows are
+     * decoded in chunks on the fork/join pool while reading continues.
+     * @return all messages of the result set, in result set order
+     */
+    private List<KonMessage> loadMessages(ResultSet resultSet) throws SQLException {
+        boolean parallel = Config.getInstance().getBoolean(Config.MAIN_LOAD_PARALLEL);
+        List<DecodeTask> tasks = new ArrayList<>();
+        List<MessageRow> chunk = new ArrayList<>(DECODE_CHUNK);
+        while (resultSet.next()) {
+            chunk.add(new MessageRow(resultSet));
+            if (parallel && chunk.size() == DECODE_CHUNK) {
+                DecodeTask task = new DecodeTask(chunk);
+                ForkJoinPool.commonPool().execute(task);
+                tasks.add(task);
+                chunk = new ArrayList<>(DECODE_CHUNK);
+            }
+        }
+        // the rest (or everything) is decoded on this thread
+        DecodeTask lastTask = new DecodeTask(chunk);
+        lastTask.invoke();
+        tasks.add(lastTask);
+
+        // merge in bulk
+        List<KonMessage> messages = new ArrayList<>();
+        List<KonMessage> newMessages = new ArrayList<>();
+        Map<KonThread, SortedSet<KonMessage>> threadMessages = new HashMap<>();
+        for (DecodeTask task : tasks) {
+            task.join();
+            for (int i = 0; i < task.mRows.size(); i++) {
+                KonMessage message = task.mMessages[i];
+                if (message == null)
+                    continue;
+                messages.add(message);
+                if (!task.mNew[i])
                     continue;
+                newMessages.add(message);
+                SortedSet<KonMessage> set = threadMessages.get(message.getThread());
+                if (set == null) {
+                    set = new TreeSet<>();
+                    threadMessages.put(message.getThread(), set);
                 }
-                String jid = resultSet.getString(KonMessage.COL_JID);
-                String xmppID = Database.getString(resultSet, KonMessage.COL_XMPP_ID);
-                Date date = new Date(resultSet.getLong(KonMessage.COL_DATE));
-                int statusIndex = resultSet.getInt(KonMessage.COL_REC_STAT);
-                KonMessage.Status status = statusValues[statusIndex];
-                String jsonContent = resultSet.getString(KonMessage.COL_CONTENT);
-                MessageContent content = MessageContent.fromJSONString(jsonContent);
-
-                int encryptionIndex = resultSet.getInt(KonMessage.COL_ENCR_STAT);
-                Coder.Encryption encryption = encryptionValues[encryptionIndex];
-                int signingIndex = resultSet.getInt(KonMessage.COL_SIGN_STAT);
-                Coder.Signing signing = signingValues[signingIndex];
-                int errorFlags = resultSet.getInt(KonMessage.COL_COD_ERR);
-                EnumSet<Coder.Error> coderErrors = EncodingUtils.intToEnumSet(Coder.Error.class, errorFlags);
-                CoderStatus coderStatus = new CoderStatus(encryption, signing, coderErrors);
-                String jsonServerError = resultSet.getString(KonMessage.COL_SERV_ERR);
-                KonMessage.ServerError serverError =
-                        KonMessage.ServerError.fromJSON(jsonServerError);
-                long sDate = resultSet.getLong(KonMessage.COL_SERV_DATE);
-                Optional<Date> serverDate = sDate == 0 ?
-                        Optional.<Date>empty() :
-                        Optional.of(new Date(sDate));
-
-                KonMessage.Builder builder = new KonMessage.Builder(id,
-                        optThread.get(),
-                        dir,
-                        optUser.get(),
-                        date);
-                builder.jid(jid);
-                builder.xmppID(xmppID);
-                builder.serverDate(serverDate);
-                builder.receiptStatus(status);
-                builder.content(content);
-                builder.coderStatus(coderStatus);
-                builder.serverError(serverError);
-
-                KonMessage newMessage = builder.build();
-
-                optThread.get().add(newMessage);
-                this.addMessage(newMessage);
+                set.add(message);
             }
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't load messages from db", ex);
         }
+        for (Map.Entry<KonThread, SortedSet<KonMessage>> entry : threadMessages.entrySet())
+            entry.getKey().addAll(entry.getValue());
+        this.addMessages(newMessages);
+        return messages;
+    }
+
+    /**
+     * Create a new message for a row.
+     * @return the message or null if thread or user don't exist
+     */
+    private static KonMessage decode(MessageRow row) {
+        Optional<KonThread> optThread =
+                ThreadList.getInstance().get(row.threadID);
+        if (!optThread.isPresent()) {
+            LOGGER.warning("can't find thread, id:"+row.threadID);
+            return null;
+        }
+        KonMessage.Direction dir = DIR_VALUES[row.dir];
+        Optional<User> optUser =
+                UserList.getInstance().get(row.userID);
+        if (!optUser.isPresent()) {
+            LOGGER.warning("can't find user, id:"+row.userID);
+            return null;
+        }
+        Date date = new Date(row.date);
+        KonMessage.Status status = STATUS_VALUES[row.status];
+        MessageContent content = row.jsonContent.isEmpty() ?
+                MessageContent.fromColumns(row) :
+                MessageContent.fromJSONString(row.jsonContent);
+
+        Coder.Encryption encryption = ENCRYPTION_VALUES[row.encryption];
+        Coder.Signing signing = SIGNING_VALUES[row.signing];
+        EnumSet<Coder.Error> coderErrors = EncodingUtils.intToEnumSet(Coder.Error.class, row.coderErrors);
+        CoderStatus coderStatus = new CoderStatus(encryption, signing, coderErrors);
+        KonMessage.ServerError serverError =
+                new KonMessage.ServerError(row.serverErrorCondition, row.serverErrorText);
+        Optional<Date> serverDate = row.serverDate == 0 ?
+                Optional.<Date>empty() :
+                Optional.of(new Date(row.serverDate));
+
+        KonMessage.Builder builder = new KonMessage.Builder(row.id,
+                optThread.get(),
+                dir,
+                optUser.get(),
+                date);
+        builder.jid(row.jid);
+        builder.xmppID(row.xmppID);
+        builder.serverDate(serverDate);
+        builder.receiptStatus(status);
+        builder.content(content);
+        builder.coderStatus(coderStatus);
+        builder.serverError(serverError);
+        if (!row.jsonContent.isEmpty())
+            builder.jsonContent();
+
+        return builder.build();
+    }
+
+    private Optional<KonMessage> getLoaded(String xmppID, int id) {
+        List<KonMessage> l = mMap.get(xmppID);
+        if (l == null)
+            return Optional.empty();
+        for (KonMessage m : l) {
+            if (m.getID() == id)
+                return Optional.of(m);
+        }
+        return Optional.empty();
     }
 
     /**
      * Add message without notifying observers.
      */
     private synchronized boolean addMessage(KonMessage m) {
-        // small capacity (dunno if this even matters)
-        List<KonMessage> l = mMap.getOrDefault(m.getXMPPID(), new ArrayList<KonMessage>(3));
-        mMap.putIfAbsent(m.getXMPPID(), l);
+        // lists are small and rarely modified
+        List<KonMessage> l = mMap.get(m.getXMPPID());
+        if (l == null) {
+            l = new CopyOnWriteArrayList<>();
+            mMap.put(m.getXMPPID(), l);
+        }
         // see KonMessage.equals()
         if (l.contains(m)) {
             LOGGER.warning("message already in message list, ID: "+m.getID());
             return true;
         }
+        if (m instanceof OutMessage)
+            mStatusIndex.get(m.getReceiptStatus()).add((OutMessage) m);
         return l.add(m);
     }
 
+    /**
+     * Add loaded messages without notifying observers.
+     */
+    private synchronized void addMessages(List<KonMessage> messages) {
+        for (KonMessage m : messages)
+            this.addMessage(m);
+    }
+
+    /**
+     * Remove all messages of a deleted thread from this list, called by the
+     * thread list. Observers are not notified.
+     */
+    synchronized void threadDeleted(KonThread thread) {
+        mPageStart.remove(thread.getID());
+        for (KonMessage m : thread.getMessages()) {
+            List<KonMessage> l = mMap.get(m.getXMPPID());
+            if (l == null)
+                continue;
+            l.remove(m);
+            if (l.isEmpty())
+                mMap.remove(m.getXMPPID());
+            if (m instanceof OutMessage) {
+                // status may change concurrently, remove from all
+                for (Set<OutMessage> s : mStatusIndex.values())
+                    s.remove(m);
+            }
+        }
+    }
+
+    /**
+     * Update the status index, called by an outgoing message after its
+     * receipt status changed.
+     */
+    synchronized void statusChanged(OutMessage m, KonMessage.Status oldStatus) {
+        // message may not be in this list (yet)
+        if (mStatusIndex.get(oldStatus).remove(m))
+            mStatusIndex.get(m.getReceiptStatus()).add(m);
+    }
+
     /**
      * Add a new message to this list.
      * @return true on success, else false
@@ -153,27 +476,17 @@ public final class MessageList extends Observable {
      * Get all outgoing messages with status "PENDING".
      */
     public synchronized SortedSet<OutMessage> getPending() {
-        // TODO performance, probably additional map needed
-        SortedSet<OutMessage> s = new TreeSet<>();
-        for (List<KonMessage> l : mMap.values()) {
-            // TODO use lambda in near future
-            for (KonMessage m : l) {
-                if (m.getReceiptStatus() == KonMessage.Status.PENDING &&
-                        m instanceof OutMessage) {
-                    s.add((OutMessage) m);
-                }
-            }
-        }
-        return s;
+        return new TreeSet<>(mStatusIndex.get(KonMessage.Status.PENDING));
     }
 
     /**
      * Get the newest (ie last received) outgoing message.
      */
-    public synchronized Optional<OutMessage> getLast(String xmppID) {
-        if (mMap.containsKey(xmppID)) {
+    public Optional<OutMessage> getLast(String xmppID) {
+        List<KonMessage> l = mMap.get(xmppID);
+        if (l != null) {
             SortedSet<OutMessage> s = new TreeSet<>();
-            for (KonMessage m : mMap.get(xmppID)) {
+            for (KonMessage m : l) {
                 if (m instanceof OutMessage) {
                     s.add((OutMessage) m);
                 }
@@ -188,4 +501,52 @@ public final class MessageList extends Observable {
     public static MessageList getInstance() {
         return INSTANCE;
     }
+
+    /**
+     * Decode a chunk of rows. Messages that are already loaded are not
+     * decoded again.
+     */
+    private final class DecodeTask extends RecursiveAction {
+        private final List<MessageRow> mRows;
+        // results, in row order; null if the row can't be decoded
+        private final KonMessage[] mMessages;
+        private final boolean[] mNew;
+
+        private DecodeTask(List<MessageRow> rows) {
+            mRows = rows;
+            mMessages = new KonMessage[rows.size()];
+            mNew = new boolean[rows.size()];
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < mRows.size(); i++) {
+                MessageRow row = mRows.get(i);
+                Optional<KonMessage> optMessage =
+                        MessageList.this.getLoaded(row.xmppID, row.id);
+                if (optMessage.isPresent()) {
+                    mMessages[i] = optMessage.get();
+                } else {
+                    mMessages[i] = decode(row);
+                    mNew[i] = true;
+                }
+            }
+        }
+    }
+
+    /** A message found with {@link #search}, the message may not be loaded. */
+    public static final class SearchHit {
+        public final KonThread thread;
+        public final int messageID;
+        public final Date date;
+        /** Part of the message text around the matching words. */
+        public final String snippet;
+
+        private SearchHit(KonThread thread, int messageID, Date date, String snippet) {
+            this.thread = thread;
+            this.messageID = messageID;
+            this.date = date;
+            this.snippet = snippet;
+        }
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.kontalk.system.Database;
+
+/**
+ * Raw column values of one row in the message table.
+ * Rows are copied out of the result set on the reading (JDBC) thread and
+ * decoded to messages later, possibly on another thread.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class MessageRow {
+
+    final int id;
+    final int threadID;
+    final int dir;
+    final int userID;
+    final String jid;
+    final String xmppID;
+    final long date;
+    final int status;
+    // JSON content if not converted yet, see Database
+    final String jsonContent;
+    final int encryption;
+    final int signing;
+    final int coderErrors;
+    final long serverDate;
+
+    // content columns, see KonMessage.CONTENT_COLUMNS
+    final String plainText;
+    final byte[] encryptedData;
+    final String decryptedText;
+    // null if there is no attachment
+    final String attURL;
+    final String attMime;
+    final long attLength;
+    final String attFileName;
+    final int attEncryption;
+    final int attSigning;
+    final int attCoderErrors;
+    final boolean attDecrypted;
+
+    final String serverErrorCondition;
+    final String serverErrorText;
+
+    MessageRow(ResultSet resultSet) throws SQLException {
+        id = resultSet.getInt("_id");
+        threadID = resultSet.getInt(KonMessage.COL_THREAD_ID);
+        dir = resultSet.getInt(KonMessage.COL_DIR);
+        userID = resultSet.getInt(KonMessage.COL_USER_ID);
+        jid = resultSet.getString(KonMessage.COL_JID);
+        xmppID = Database.getString(resultSet, KonMessage.COL_XMPP_ID);
+        date = resultSet.getLong(KonMessage.COL_DATE);
+        status = resultSet.getInt(KonMessage.COL_REC_STAT);
+        jsonContent = Database.getString(resultSet, KonMessage.COL_CONTENT);
+        encryption = resultSet.getInt(KonMessage.COL_ENCR_STAT);
+        signing = resultSet.getInt(KonMessage.COL_SIGN_STAT);
+        coderErrors = resultSet.getInt(KonMessage.COL_COD_ERR);
+        serverDate = resultSet.getLong(KonMessage.COL_SERV_DATE);
+
+        plainText = Database.getString(resultSet, KonMessage.COL_PLAIN_TEXT);
+        encryptedData = resultSet.getBytes(KonMessage.COL_ENCR_DATA);
+        decryptedText = resultSet.getString(KonMessage.COL_DEC_TEXT);
+        attURL = resultSet.getString(KonMessage.COL_ATT_URL);
+        attMime = Database.getString(resultSet, KonMessage.COL_ATT_MIME);
+        attLength = resultSet.getLong(KonMessage.COL_ATT_LENGTH);
+        attFileName = Database.getString(resultSet, KonMessage.COL_ATT_FILE);
+        attEncryption = resultSet.getInt(KonMessage.COL_ATT_ENCR_STAT);
+        attSigning = resultSet.getInt(KonMessage.COL_ATT_SIGN_STAT);
+        attCoderErrors = resultSet.getInt(KonMessage.COL_ATT_COD_ERR);
+        attDecrypted = resultSet.getBoolean(KonMessage.COL_ATT_DEC);
+
+        serverErrorCondition = Database.getString(resultSet, KonMessage.COL_SERV_ERR_COND);
+        serverErrorText = Database.getString(resultSet, KonMessage.COL_SERV_ERR_TEXT);
+    }
+}
@@ -41,9 +41,11 @@ public final class OutMessage extends KonMessage {
             LOGGER.warning("unexpected new status of sent message: "+status);
         if (status == Status.RECEIVED && mReceiptStatus != Status.SENT)
             LOGGER.warning("unexpected new status of received message: "+status);
+        Status oldStatus = mReceiptStatus;
         mReceiptStatus = status;
         mServerDate = Optional.of(new Date());
-        this.save();
+        MessageList.getInstance().statusChanged(this, oldStatus);
+        this.save(Part.STATUS);
         this.changed(mReceiptStatus);
     }
 
@@ -20,6 +20,7 @@ package org.kontalk.model;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Observable;
@@ -27,6 +28,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kontalk.system.Database;
@@ -40,7 +42,14 @@ public final class ThreadList extends Observable {
 
     private final static ThreadList INSTANCE = new ThreadList();
 
-    private final HashMap<Integer, KonThread> mMap = new HashMap<>();
+    // reading is lock-free, modifications are synchronized
+
+    private final ConcurrentHashMap<Integer, KonThread> mMap = new ConcurrentHashMap<>();
+    // indexes for fast lookup, synced with the map
+    private final ConcurrentHashMap<String, KonThread> mXMPPIDIndex = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<User, KonThread> mUserIndex = new ConcurrentHashMap<>();
+    /** Unmodifiable sorted set of all threads, replaced on modification. */
+    private volatile SortedSet<KonThread> mSnapshot = Collections.emptySortedSet();
 
     private ThreadList() {
     }
@@ -84,64 +93,74 @@ public final class ThreadList extends Observable {
                 String subject = Database.getString(threadRS, KonThread.COL_SUBJ);
                 boolean read = threadRS.getBoolean(KonThread.COL_READ);
                 String jsonViewSettings = Database.getString(threadRS, KonThread.COL_VIEW_SET);
+                KonThread thread = new KonThread(id, xmppThreadID, userSet, subject, read, jsonViewSettings);
                 synchronized (this) {
-                    mMap.put(id, new KonThread(id, xmppThreadID, userSet, subject, read, jsonViewSettings));
+                    mMap.put(id, thread);
+                    this.index(thread);
                 }
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load threads from db", ex);
         }
+        this.updateSnapshot();
         this.changed(null);
     }
 
-    public synchronized SortedSet<KonThread> getAll() {
-        return new TreeSet<>(mMap.values());
+    /**
+     * Get all threads. The returned set is an unmodifiable snapshot.
+     */
+    public SortedSet<KonThread> getAll() {
+        return mSnapshot;
+    }
+
+    private synchronized void updateSnapshot() {
+        mSnapshot = Collections.unmodifiableSortedSet(new TreeSet<>(mMap.values()));
     }
 
-    public synchronized void save() {
+    public void save() {
         for (KonThread thread: mMap.values()) {
             thread.save();
         }
     }
 
     public KonThread get(User user) {
+        KonThread thread = mUserIndex.get(user);
+        if (thread != null)
+            return thread;
         synchronized (this) {
-            for (KonThread thread : mMap.values()) {
-                Set<User> threadUser = thread.getUser();
-                if (threadUser.size() == 1 && threadUser.contains(user))
-                    return thread;
-            }
+            // check again, another thread may have created it
+            thread = mUserIndex.get(user);
+            if (thread != null)
+                return thread;
+            Set<User> userSet = new HashSet<>();
+            userSet.add(user);
+            return this.createNew(userSet);
         }
-        Set<User> userSet = new HashSet<>();
-        userSet.add(user);
-        return this.createNew(userSet);
     }
 
     public KonThread createNew(Set<User> user) {
         KonThread newThread = new KonThread(user);
         synchronized (this) {
             mMap.put(newThread.getID(), newThread);
+            this.index(newThread);
+            this.updateSnapshot();
         }
         this.changed(newThread);
         return newThread;
     }
 
-    public synchronized Optional<KonThread> get(int id) {
+    public Optional<KonThread> get(int id) {
         KonThread thread = mMap.get(id);
         if (thread == null)
             LOGGER.warning("can't find thread with id: "+id);
         return Optional.ofNullable(thread);
     }
 
-    public synchronized Optional<KonThread> get(String xmppThreadID) {
+    public Optional<KonThread> get(String xmppThreadID) {
         if (xmppThreadID == null || xmppThreadID.isEmpty()) {
             return Optional.empty();
         }
-        for (KonThread thread : mMap.values()) {
-            if (xmppThreadID.equals(thread.getXMPPID().orElse(null)))
-                return Optional.of(thread);
-        }
-        return Optional.empty();
+        return Optional.ofNullable(mXMPPIDIndex.get(xmppThreadID));
     }
 
     public boolean contains(int id) {
@@ -154,10 +173,60 @@ public final class ThreadList extends Observable {
             LOGGER.warning("can't delete thread, not found. id: "+id);
             return;
         }
+        this.unindex(thread, thread.getUser());
+        this.updateSnapshot();
         thread.delete();
+        MessageList.getInstance().threadDeleted(thread);
         this.changed(thread);
     }
 
+    /**
+     * Update the user index, called by a thread after its user changed.
+     */
+    synchronized void userChanged(KonThread thread, Set<User> oldUser) {
+        if (!mMap.containsKey(thread.getID()))
+            return;
+        this.unindex(thread, oldUser);
+        this.index(thread);
+    }
+
+    private void index(KonThread thread) {
+        Optional<String> optXMPPID = thread.getXMPPID();
+        if (optXMPPID.isPresent())
+            mXMPPIDIndex.putIfAbsent(optXMPPID.get(), thread);
+        Set<User> user = thread.getUser();
+        if (user.size() == 1)
+            mUserIndex.putIfAbsent(user.iterator().next(), thread);
+    }
+
+    private void unindex(KonThread thread, Set<User> user) {
+        Optional<String> optXMPPID = thread.getXMPPID();
+        if (optXMPPID.isPresent() &&
+                mXMPPIDIndex.remove(optXMPPID.get(), thread)) {
+            // there might be another thread with the same ID
+            for (KonThread other : mMap.values()) {
+                if (other != thread && optXMPPID.equals(other.getXMPPID())) {
+                    mXMPPIDIndex.put(optXMPPID.get(), other);
+                    break;
+                }
+            }
+        }
+        if (user.size() != 1)
+            return;
+        User oneUser = user.iterator().next();
+        if (mUserIndex.remove(oneUser, thread)) {
+            // there might be another thread for this user
+            for (KonThread other : mMap.values()) {
+                Set<User> otherUser = other.getUser();
+                if (other != thread && otherUser.size() == 1 &&
+                        otherUser.contains(oneUser)) {
+                    mUserIndex.put(oneUser, other);
+                    break;
+                }
+            }
+        }
+    }
+
     private synchronized void changed(KonThread thread) {
         this.setChanged();
         this.notifyObservers(thread);
@@ -30,6 +30,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jivesoftware.smack.packet.Presence;
 import org.jxmpp.util.XmppStringUtils;
+import org.kontalk.crypto.Coder;
 import org.kontalk.system.Config;
 import org.kontalk.system.Database;
 
@@ -211,6 +212,7 @@ public final class User extends Observable implements Comparable<User> {
 
         mKey = Base64.getEncoder().encodeToString(rawKey);
         mFingerprint = fingerprint;
+        Coder.invalidateKey(this);
         this.save();
         this.changed(null);
     }
@@ -20,12 +20,13 @@ package org.kontalk.model;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Observable;
 import java.util.Optional;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jxmpp.util.XmppStringUtils;
@@ -40,10 +41,14 @@ public final class UserList extends Observable {
 
     private final static UserList INSTANCE = new UserList();
 
+    // reading is lock-free, modifications are synchronized
+
     /** JID to user. */
-    private final HashMap<String, User> mJIDMap = new HashMap<>();
+    private final ConcurrentHashMap<String, User> mJIDMap = new ConcurrentHashMap<>();
     /** Database ID to user. */
-    private final HashMap<Integer, User> mIDMap = new HashMap<>();
+    private final ConcurrentHashMap<Integer, User> mIDMap = new ConcurrentHashMap<>();
+    /** Unmodifiable sorted set of all users, replaced on modification. */
+    private volatile SortedSet<User> mSnapshot = Collections.emptySortedSet();
 
     private UserList() {
     }
@@ -72,11 +77,19 @@ public final class UserList extends Observable {
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load users from db", ex);
         }
+        this.updateSnapshot();
         this.changed();
     }
 
-    public synchronized SortedSet<User> getAll() {
-        return new TreeSet<>(mJIDMap.values());
+    /**
+     * Get all users. The returned set is an unmodifiable snapshot.
+     */
+    public SortedSet<User> getAll() {
+        return mSnapshot;
+    }
+
+    private synchronized void updateSnapshot() {
+        mSnapshot = Collections.unmodifiableSortedSet(new TreeSet<>(mJIDMap.values()));
     }
 
     /**
@@ -94,18 +107,19 @@ public final class UserList extends Observable {
         User newUser = new User(jid, name);
         mJIDMap.put(jid, newUser);
         mIDMap.put(newUser.getID(), newUser);
-        this.save();
+        // new user is already in database
+        this.updateSnapshot();
         this.changed();
         return Optional.of(newUser);
     }
 
-    public synchronized void save() {
+    public void save() {
         for (User user: mJIDMap.values()) {
             user.save();
         }
     }
 
-    synchronized Optional<User> get(int id) {
+    Optional<User> get(int id) {
         Optional<User> optUser = Optional.ofNullable(mIDMap.get(id));
         if (!optUser.isPresent())
             LOGGER.warning("can't find user with ID: "+id);
@@ -118,7 +132,7 @@ public final class UserList extends Observable {
      * @param jid
      * @return
      */
-    public synchronized Optional<User> get(String jid) {
+    public Optional<User> get(String jid) {
         jid = XmppStringUtils.parseBareJid(jid);
         return Optional.ofNullable(mJIDMap.get(jid));
     }
@@ -129,7 +143,7 @@ public final class UserList extends Observable {
      * @param jid
      * @return
      */
-    public synchronized boolean contains(String jid) {
+    public boolean contains(String jid) {
         jid = XmppStringUtils.parseBareJid(jid);
         return mJIDMap.containsKey(jid);
     }
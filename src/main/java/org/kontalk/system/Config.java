@@ -50,12 +50,19 @@ public final class Config extends PropertiesConfiguration {
     public final static String VIEW_FRAME_HEIGHT = "view.frame.height";
     public final static String VIEW_SELECTED_THREAD = "view.thread";
     public final static String VIEW_THREAD_BG = "view.thread_bg";
+    public final static String VIEW_THREAD_CACHE = "view.thread_cache";
     public final static String NET_SEND_CHAT_STATE = "net.chatstate";
     public final static String NET_STATUS_LIST = "net.status_list";
+    public final static String NET_DOWNLOAD_THREADS = "net.download_threads";
+    public final static String NET_DOWNLOAD_HOST_LIMIT = "net.download_host_limit";
     public final static String MAIN_CONNECT_STARTUP = "main.connect_startup";
     public final static String MAIN_TRAY = "main.tray";
     public final static String MAIN_TRAY_CLOSE = "main.tray_close";
     public final static String MAIN_ENTER_SENDS = "main.enter_sends";
+    public final static String MAIN_MESSAGE_PAGE = "main.message_page";
+    public final static String MAIN_DECRYPT_THREADS = "main.decrypt_threads";
+    public final static String MAIN_LOAD_PARALLEL = "main.load_parallel";
+    public final static String MAIN_CRYPTO_BACKEND = "main.crypto_backend";
 
     // default server address
     //public final static String DEFAULT_SERV_NET = "kontalk.net";
@@ -88,12 +95,26 @@ public final class Config extends PropertiesConfiguration {
         map.put(VIEW_FRAME_HEIGHT, 650);
         map.put(VIEW_SELECTED_THREAD, -1);
         map.put(VIEW_THREAD_BG, "");
+        // number of thread views kept in memory
+        map.put(VIEW_THREAD_CACHE, 10);
         map.put(NET_SEND_CHAT_STATE, true);
         map.put(NET_STATUS_LIST, new String[]{""});
+        // number of parallel attachment downloads, in total and per host
+        map.put(NET_DOWNLOAD_THREADS, 3);
+        map.put(NET_DOWNLOAD_HOST_LIMIT, 2);
         map.put(MAIN_CONNECT_STARTUP, true);
         map.put(MAIN_TRAY, true);
         map.put(MAIN_TRAY_CLOSE, false);
         map.put(MAIN_ENTER_SENDS, true);
+        // number of messages loaded per thread, zero or less loads everything
+        map.put(MAIN_MESSAGE_PAGE, 100);
+        // number of threads for decrypting incoming messages
+        map.put(MAIN_DECRYPT_THREADS, 2);
+        // decode messages loaded from database on all cores; off until
+        // LoadBenchmark shows a gain on multi-core machines
+        map.put(MAIN_LOAD_PARALLEL, false);
+        // implementation of PGP operations: "bc" or "jce"
+        map.put(MAIN_CRYPTO_BACKEND, "bc");
 
         for(Entry<String, Object> e : map.entrySet()) {
             if (!this.containsKey(e.getKey())) {
@@ -71,11 +71,13 @@ public final class Control extends Observable {
     }
 
     private final Client mClient;
+    private final Decrypter mDecrypter;
 
     private Status mCurrentStatus = Status.DISCONNECTED;
 
     public Control() {
         mClient = new Client(this);
+        mDecrypter = new Decrypter(this);
     }
 
     public void launch() {
@@ -109,6 +111,8 @@ public final class Control extends Observable {
         }
         Config.getInstance().saveToFile();
 
+        // not decrypted messages are saved encrypted
+        LOGGER.info("decryption statistics: "+mDecrypter.getStats());
         Kontalk.exit();
     }
 
@@ -278,7 +282,8 @@ public final class Control extends Observable {
 
     /**
      * All-in-one method for a new incoming message (except handling server
-     * receipts): Create, save and process the message.
+     * receipts): Create and save the message. Decryption is done in the
+     * background.
      * @return true on success or message is a duplicate, false on unexpected failure
      */
     public boolean newInMessage(String from,
@@ -308,16 +313,19 @@ public final class Control extends Observable {
             LOGGER.info("message already in message list, dropping this one");
             return true;
         }
-        newMessage.save();
-
-        this.decryptAndDownload(newMessage);
-
         thread.addMessage(newMessage);
+
+        if (newMessage.getCoderStatus().isEncrypted()) {
+            mDecrypter.queue(newMessage);
+        } else if (newMessage.getContent().getAttachment().isPresent()) {
+            Downloader.getInstance().queueDownload(newMessage);
+        }
         return newMessage.getID() >= -1;
     }
 
     /**
      * Decrypt an incoming message and download attachment if present.
+     * Blocking, new messages are decrypted in the background.
      */
     public void decryptAndDownload(InMessage message) {
         Coder.processInMessage(message);
@@ -330,6 +338,16 @@ public final class Control extends Observable {
         }
     }
 
+    /** Number of incoming messages waiting for decryption. */
+    public int getDecryptQueueSize() {
+        return mDecrypter.getQueueSize();
+    }
+
+    /** Statistics about decryption of incoming messages. */
+    public String getDecryptStats() {
+        return mDecrypter.getStats();
+    }
+
     /**
      * Set the receipt status of a message.
      * @param xmppID XMPP ID of message
@@ -18,6 +18,9 @@
 
 package org.kontalk.system;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -28,9 +31,15 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
@@ -39,15 +48,23 @@ import org.kontalk.model.KonMessage;
 import org.kontalk.model.KonThread;
 import org.kontalk.model.User;
 import org.kontalk.util.EncodingUtils;
+import org.sqlite.Function;
 import org.sqlite.SQLiteConfig;
 
 /**
  * Global database for permanently storing all model information.
  * Uses the JDBC API and SQLite as DBMS.
  *
- * Database access is not concurrent safe (connection pool is needed). At least
- * writing is synchronized. Hopefully we don't see this no more:
- * "SQLException: ResultSet already requested" or "ResultSet closed"
+ * SQLite runs in WAL mode: There is one connection for writing (access is
+ * synchronized) and a small pool of read-only connections. Readers do not
+ * block each other or the writer. A thread keeps its read connection while
+ * it has open result sets, the connection is returned to the pool when the
+ * last one is closed. Result sets must always be closed!
+ *
+ * Writes are grouped into transactions that are committed shortly after, see
+ * flush(). Reads on the read connections don't wait for the writer and only
+ * see committed writes. Call flush() before reading if the latest writes
+ * must be visible, or read through the writer with execSelectOwnWrites().
  *
  * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
  */
@@ -58,13 +75,68 @@ public final class Database {
 
     public static final String DB_NAME = "kontalk_db.sqlite";
 
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 6;
     private static final String SV = "schema_version";
     private static final String UV = "user_version";
+    /** Name of the SQL function for ranking search hits. */
+    private static final String RANK_FUNCTION = "kon_rank";
 
+    private final String mPath;
+    /** The one and only connection for writing. */
     private Connection mConn = null;
+    /** Prepared insert/update statements of the writer, by SQL string. */
+    private final HashMap<String, PreparedStatement> mStatements = new HashMap<>();
+    private boolean mCacheStatements = true;
+    /** Last statement of the writer if caching is disabled. */
+    private PreparedStatement mUncachedStatement = null;
+    /** Maximum number of read-only connections. */
+    static final int MAX_READ_CONNS = 4;
+    /** Maximum time in seconds to wait for a free read connection. */
+    private static final int READ_CONN_TIMEOUT = 10;
+    /** All read-only connections. */
+    private final List<Connection> mReadConns = new ArrayList<>(MAX_READ_CONNS);
+    /** Read-only connections not used by any thread. */
+    private final ArrayBlockingQueue<Connection> mIdleReadConns =
+            new ArrayBlockingQueue<>(MAX_READ_CONNS);
+    /** Read connection used by a thread, access synchronized. */
+    private final HashMap<Thread, ReadLease> mLeases = new HashMap<>();
+
+    /** Maximum time in milliseconds before uncommitted writes are flushed. */
+    private static final int FLUSH_DELAY = 20;
+    /** Maximum number of writes in one transaction. */
+    private static final int MAX_BATCH = 200;
+
+    private final ScheduledExecutorService mFlusher =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Database flusher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            Database.this.flush();
+        }
+    };
+    /** Number of writes in the current transaction. */
+    private int mUncommitted = 0;
+    private boolean mFlushScheduled = false;
+    /** Message content must be converted after update to version 4. */
+    private boolean mConvertContent = false;
+
+    // metrics
+    private long mFlushCount = 0;
+    private long mFlushedWrites = 0;
+    private int mMaxBatchSize = 0;
+    private long mFlushNanos = 0;
+    private long mMaxFlushNanos = 0;
 
     private Database(String path) throws KonException {
+        mPath = path;
+
         // load the sqlite-JDBC driver using the current class loader
         try {
             Class.forName("org.sqlite.JDBC");
@@ -76,6 +148,8 @@ public final class Database {
         // create database connection
         SQLiteConfig config = new SQLiteConfig();
         config.enforceForeignKeys(true);
+        // allow concurrent reading while writing
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
         try {
           mConn = DriverManager.getConnection("jdbc:sqlite:" + path, config.toProperties());
         } catch(SQLException ex) {
@@ -93,7 +167,7 @@ public final class Database {
         }
 
         boolean isNew;
-        try (ResultSet rs = this.execQuery("PRAGMA "+SV)) {
+        try (ResultSet rs = execQuery(mConn, "PRAGMA "+SV)) {
             isNew = rs.getInt(SV) == 0;
         } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "can't get schema version", ex);
@@ -103,6 +177,7 @@ public final class Database {
         if (isNew) {
             LOGGER.info("new database, creating tables");
             String create = "CREATE TABLE IF NOT EXISTS ";
+            String createIndex = "CREATE INDEX IF NOT EXISTS ";
             try (Statement stat = mConn.createStatement()) {
                 stat.executeUpdate(create + User.TABLE + " " + User.CREATE_TABLE);
                 stat.executeUpdate(create +
@@ -117,28 +192,52 @@ public final class Database {
                         KonMessage.TABLE +
                         " " +
                         KonMessage.CREATE_TABLE);
+                stat.executeUpdate(createIndex +
+                        KonMessage.INDEX_THREAD_DATE +
+                        " " +
+                        KonMessage.CREATE_INDEX_THREAD_DATE);
+                this.createSearchIndex(stat);
                 // set version
                 mConn.createStatement().execute("PRAGMA "+UV+" = "+DB_VERSION);
             } catch (SQLException ex) {
                 LOGGER.log(Level.SEVERE, "can't create tables", ex);
                 throw new KonException(KonException.Error.DB, ex);
             }
-            return;
+        } else {
+            // update if needed
+            int version = -1;
+            try (ResultSet rs = execQuery(mConn, "PRAGMA "+UV)) {
+                version = rs.getInt(UV);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't get db version", ex);
+            }
+            if (version >= 0) {
+                LOGGER.info("database version: "+version);
+                try {
+                    this.update(version);
+                } catch (SQLException ex) {
+                    LOGGER.log(Level.WARNING, "can't update db", ex);
+                }
+            }
         }
 
-        // update if needed
-        int version;
-        try (ResultSet rs = this.execQuery("PRAGMA "+UV)) {
-            version = rs.getInt(UV);
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't get db version", ex);
-            return;
-        }
-        LOGGER.info("database version: "+version);
+        // from now on writes are committed in batches, see flush()
         try {
-            this.update(version);
+            mConn.setAutoCommit(false);
         } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't update db", ex);
+            LOGGER.log(Level.WARNING, "can't disable autocommit", ex);
+        }
+
+        if (mConvertContent) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Database.this.convertContent();
+                }
+            }, "Database converter");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            t.start();
         }
     }
 
@@ -154,24 +253,222 @@ public final class Database {
             mConn.createStatement().execute("ALTER TABLE "+KonMessage.TABLE+
                     " ADD COLUMN "+KonMessage.COL_SERV_DATE+" DEFAULT NULL");
         }
+        if (fromVersion < 3) {
+            mConn.createStatement().execute("CREATE INDEX IF NOT EXISTS "+
+                    KonMessage.INDEX_THREAD_DATE+" "+KonMessage.CREATE_INDEX_THREAD_DATE);
+        }
+        if (fromVersion < 4) {
+            for (int i = 0; i < KonMessage.CONTENT_COLUMNS.length; i++) {
+                mConn.createStatement().execute("ALTER TABLE "+KonMessage.TABLE+
+                        " ADD COLUMN "+KonMessage.CONTENT_COLUMNS[i]+
+                        " "+KonMessage.CONTENT_COLUMN_TYPES[i]);
+            }
+            // existing JSON content is converted in the background
+            mConvertContent = true;
+        }
+        if (fromVersion < 5) {
+            try (Statement stat = mConn.createStatement()) {
+                this.createSearchIndex(stat);
+                // not converted messages are indexed when converted
+                stat.executeUpdate(KonMessage.FILL_FTS);
+            }
+        }
+        if (fromVersion < 6) {
+            try (Statement stat = mConn.createStatement()) {
+                stat.executeUpdate("ALTER TABLE "+KonMessage.TABLE+
+                        " ADD COLUMN "+KonMessage.COL_SERV_ERR_COND+" TEXT");
+                stat.executeUpdate("ALTER TABLE "+KonMessage.TABLE+
+                        " ADD COLUMN "+KonMessage.COL_SERV_ERR_TEXT+" TEXT");
+            }
+            this.convertServerErrors();
+        }
 
         // set new version
         mConn.createStatement().execute("PRAGMA "+UV+" = "+DB_VERSION);
         LOGGER.info("updated to version "+DB_VERSION);
     }
 
+    /**
+     * Convert the JSON server errors of rows saved before version 6. Only
+     * messages with an error have one, so this is done at once.
+     */
+    private void convertServerErrors() throws SQLException {
+        String select = "SELECT _id, " + KonMessage.COL_SERV_ERR +
+                " FROM " + KonMessage.TABLE +
+                " WHERE " + KonMessage.COL_SERV_ERR + " IS NOT NULL AND " +
+                KonMessage.COL_SERV_ERR + " NOT IN ('', '{}')";
+        Map<Integer, String> errors = new HashMap<>();
+        try (ResultSet rs = execQuery(mConn, select)) {
+            while (rs.next())
+                errors.put(rs.getInt("_id"), rs.getString(KonMessage.COL_SERV_ERR));
+        }
+        for (Map.Entry<Integer, String> error : errors.entrySet()) {
+            Map<String, Object> set = KonMessage.convertServerError(error.getValue());
+            set.put(KonMessage.COL_SERV_ERR, null);
+            this.execUpdate(KonMessage.TABLE, set, error.getKey());
+        }
+        LOGGER.info("converted server errors of "+errors.size()+" messages");
+    }
+
+    private void createSearchIndex(Statement stat) throws SQLException {
+        stat.executeUpdate("CREATE VIRTUAL TABLE IF NOT EXISTS " +
+                KonMessage.TABLE_FTS +
+                " " +
+                KonMessage.CREATE_TABLE_FTS);
+        for (String trigger : KonMessage.CREATE_TRIGGERS_FTS)
+            stat.executeUpdate(trigger);
+    }
+
+    /**
+     * Convert the JSON message content of rows saved before version 4 to
+     * the content columns. Rows are converted in small batches, each with
+     * the lock held, so that a row can't be saved while it is converted.
+     * Unconverted rows are still loaded from JSON.
+     */
+    private void convertContent() {
+        String select = "SELECT _id, " + KonMessage.COL_CONTENT +
+                " FROM " + KonMessage.TABLE +
+                " WHERE " + KonMessage.COL_CONTENT + " != '' AND _id > ";
+        String order = " ORDER BY _id LIMIT " + MAX_BATCH;
+        int lastID = 0;
+        int count = 0;
+        long start = System.currentTimeMillis();
+        while (true) {
+            synchronized (this) {
+                if (mFlusher.isShutdown())
+                    // closed
+                    return;
+                List<Integer> ids = new ArrayList<>(MAX_BATCH);
+                List<String> contents = new ArrayList<>(MAX_BATCH);
+                try (ResultSet rs = execQuery(mConn, select + lastID + order)) {
+                    while (rs.next()) {
+                        ids.add(rs.getInt("_id"));
+                        contents.add(rs.getString(KonMessage.COL_CONTENT));
+                    }
+                } catch (SQLException ex) {
+                    LOGGER.log(Level.WARNING, "can't read message content", ex);
+                    return;
+                }
+                if (ids.isEmpty())
+                    break;
+
+                for (int i = 0; i < ids.size(); i++) {
+                    try {
+                        this.execConvert(KonMessage.convertContent(contents.get(i)),
+                                ids.get(i));
+                    } catch (SQLException ex) {
+                        LOGGER.log(Level.WARNING, "can't convert message content, id: "
+                                +ids.get(i), ex);
+                    }
+                }
+                lastID = ids.get(ids.size() - 1);
+                count += ids.size();
+            }
+            // let others write
+            Thread.yield();
+        }
+        LOGGER.info("converted content of "+count+" messages in "
+                +(System.currentTimeMillis() - start)+" ms");
+    }
+
+    /** Update a row with converted content, lock must be held. */
+    private void execConvert(Map<String, Object> set, int id) throws SQLException {
+        List<String> keyList = new ArrayList<>(set.keySet());
+        List<String> vList = new ArrayList<>(keyList.size());
+        for (String key : keyList)
+            vList.add(key + " = ?");
+        // the row may have been saved already, don't overwrite it
+        String update = "UPDATE " + KonMessage.TABLE + " SET " +
+                StringUtils.join(vList, ", ") + " WHERE _id == ? AND " +
+                KonMessage.COL_CONTENT + " != ''";
+        PreparedStatement stat = this.getStatement(update);
+        insertValues(stat, keyList, set);
+        stat.setInt(keyList.size() + 1, id);
+        stat.executeUpdate();
+        this.written();
+    }
+
     synchronized void close() {
+        this.flush();
+        mFlusher.shutdown();
+        LOGGER.info("flush statistics: "+this.getFlushStats());
+
+        synchronized (mReadConns) {
+            for (Connection conn : mReadConns)
+                closeQuietly(conn);
+            mReadConns.clear();
+        }
+        for (PreparedStatement stat : mStatements.values()) {
+            try {
+                stat.close();
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't close statement", ex);
+            }
+        }
+        mStatements.clear();
+        closeQuietly(mUncachedStatement);
+        mUncachedStatement = null;
         try {
             if(mConn == null || mConn.isClosed())
                 return;
-            if (!mConn.getAutoCommit())
-                mConn.commit();
             mConn.close();
         } catch(SQLException ex) {
             LOGGER.log(Level.WARNING, "can't close db", ex);
         }
     }
 
+    /**
+     * Commit all pending writes. Write methods only start or extend a
+     * transaction, which gets committed here after at most FLUSH_DELAY
+     * milliseconds or MAX_BATCH writes. Call this as a durability barrier.
+     */
+    public synchronized void flush() {
+        mFlushScheduled = false;
+        if (mUncommitted == 0)
+            return;
+
+        long start = System.nanoTime();
+        try {
+            mConn.commit();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't commit", ex);
+            return;
+        }
+        long time = System.nanoTime() - start;
+
+        mFlushCount++;
+        mFlushedWrites += mUncommitted;
+        mMaxBatchSize = Math.max(mMaxBatchSize, mUncommitted);
+        mFlushNanos += time;
+        mMaxFlushNanos = Math.max(mMaxFlushNanos, time);
+        mUncommitted = 0;
+    }
+
+    /** Statistics about commits: number, batch size and latency. */
+    public synchronized String getFlushStats() {
+        long avgBatch = mFlushCount == 0 ? 0 : mFlushedWrites / mFlushCount;
+        long avgMillis = mFlushCount == 0 ? 0 : mFlushNanos / mFlushCount / 1000000;
+        return "flushes="+mFlushCount+
+                " writes="+mFlushedWrites+
+                " avgBatch="+avgBatch+
+                " maxBatch="+mMaxBatchSize+
+                " avgLatencyMs="+avgMillis+
+                " maxLatencyMs="+mMaxFlushNanos / 1000000;
+    }
+
+    /** Call after each successful write, lock must be held. */
+    private void written() {
+        mUncommitted++;
+        if (mUncommitted >= MAX_BATCH) {
+            this.flush();
+            return;
+        }
+        if (!mFlushScheduled && !mFlusher.isShutdown()) {
+            mFlushScheduled = true;
+            mFlusher.schedule(mFlushTask, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
     /**
      * Select all rows from one table.
      * The returned ResultSet must be closed by the caller after usage!
@@ -189,9 +486,93 @@ public final class Database {
         return this.execQuery("SELECT * FROM " + table + " WHERE " + where);
     }
 
+    /**
+     * Select rows from one table that match an arbitrary 'where' clause, sorted
+     * by an arbitrary 'order by' clause and limited to a maximum number of rows.
+     * Insecure to SQL injections, use with caution!
+     * The returned ResultSet must be closed by the caller after usage!
+     */
+    public ResultSet execSelectWhereInsecure(String table,
+            String where,
+            String orderBy,
+            int limit) throws SQLException {
+        return this.execQuery("SELECT * FROM " + table + " WHERE " + where +
+                " ORDER BY " + orderBy + " LIMIT " + limit);
+    }
+
+    /**
+     * Full-text search over the text of all messages. Hits are ranked by
+     * relevance, then newest first.
+     * The returned ResultSet must be closed by the caller after usage!
+     * @param query search query in SQLite FTS syntax
+     * @param limit maximum number of hits
+     * @return rows with message ID ("_id"), thread ID, date and "snippet"
+     */
+    public ResultSet execSearch(String query, int limit) throws SQLException {
+        String fts = KonMessage.TABLE_FTS;
+        String select = "SELECT m._id, m." + KonMessage.COL_THREAD_ID +
+                ", m." + KonMessage.COL_DATE +
+                ", snippet(" + fts + ", '', '', '...', -1, 12) AS snippet" +
+                " FROM " + fts + " JOIN " + KonMessage.TABLE + " AS m" +
+                " ON m._id = " + fts + ".docid" +
+                " WHERE " + fts + " MATCH ?" +
+                " ORDER BY " + RANK_FUNCTION + "(matchinfo(" + fts + ", 'pcx')) DESC" +
+                ", m." + KonMessage.COL_DATE + " DESC" +
+                " LIMIT ?";
+        List<Object> params = new ArrayList<>(2);
+        params.add(query);
+        params.add(limit);
+        return this.execQuery(select, params);
+    }
+
+    /**
+     * Select rows from one table that match an arbitrary 'where' clause, on
+     * the writer connection. Unlike the other selects, the rows include
+     * writes that are not committed yet. The writer is blocked while reading,
+     * use this only for small reads of rows just written.
+     * Insecure to SQL injections, use with caution!
+     */
+    public synchronized void execSelectOwnWrites(String table,
+            String where,
+            RowReader reader) throws SQLException {
+        String select = "SELECT * FROM " + table + " WHERE " + where;
+        try (PreparedStatement stat = mConn.prepareStatement(select);
+                ResultSet resultSet = stat.executeQuery()) {
+            reader.read(resultSet);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute select: " + select, ex);
+            throw ex;
+        }
+    }
+
+    /** Reads the rows of a result set, see execSelectOwnWrites(). */
+    public interface RowReader {
+        void read(ResultSet resultSet) throws SQLException;
+    }
+
     private ResultSet execQuery(String select) throws SQLException {
+        return this.execQuery(select, new ArrayList<>(0));
+    }
+
+    private ResultSet execQuery(String select, List<Object> params) throws SQLException {
+        ReadLease lease = this.acquireReadConnection();
+        PreparedStatement stat = null;
         try {
-            PreparedStatement stat = mConn.prepareStatement(select);
+            stat = lease.conn.prepareStatement(select);
+            insertValues(stat, params);
+            return lease.wrap(stat, stat.executeQuery());
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute select: " + select + " " + params, ex);
+            if (stat != null)
+                closeQuietly(stat);
+            this.releaseReadConnection(lease);
+            throw ex;
+        }
+    }
+
+    private static ResultSet execQuery(Connection conn, String select) throws SQLException {
+        try {
+            PreparedStatement stat = conn.prepareStatement(select);
             // does not work, i dont care
             //stat.closeOnCompletion();
             ResultSet resultSet = stat.executeQuery();
@@ -202,6 +583,163 @@ public final class Database {
         }
     }
 
+    /**
+     * Get the read connection of the current thread, or a free connection
+     * from the pool. Waits if all connections are used by other threads.
+     */
+    private ReadLease acquireReadConnection() throws SQLException {
+        Thread current = Thread.currentThread();
+        synchronized (mLeases) {
+            ReadLease lease = mLeases.get(current);
+            if (lease != null) {
+                // nested read, the connection can have more open result sets
+                lease.open++;
+                return lease;
+            }
+        }
+
+        Connection conn = mIdleReadConns.poll();
+        if (conn == null)
+            conn = this.createReadConnection();
+        if (conn == null) {
+            try {
+                conn = mIdleReadConns.poll(READ_CONN_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for read connection", ex);
+            }
+            if (conn == null) {
+                LOGGER.warning("no read connection available, result sets not closed?");
+                throw new SQLException("no read connection available");
+            }
+        }
+
+        ReadLease lease = new ReadLease(current, conn);
+        synchronized (mLeases) {
+            mLeases.put(current, lease);
+        }
+        return lease;
+    }
+
+    /** Called when a result set is closed. */
+    private void releaseReadConnection(ReadLease lease) {
+        synchronized (mLeases) {
+            lease.open--;
+            if (lease.open > 0)
+                return;
+            mLeases.remove(lease.owner);
+        }
+        mIdleReadConns.offer(lease.conn);
+    }
+
+    /**
+     * Create a new read-only connection if the maximum number is not reached.
+     * @return the new connection or null if maximum is reached
+     */
+    private Connection createReadConnection() throws SQLException {
+        synchronized (mReadConns) {
+            if (mReadConns.size() >= MAX_READ_CONNS)
+                return null;
+
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(true);
+            Connection conn;
+            try {
+                conn = DriverManager.getConnection("jdbc:sqlite:" + mPath,
+                        config.toProperties());
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't create read connection", ex);
+                throw ex;
+            }
+            try {
+                Function.create(conn, RANK_FUNCTION, new RankFunction());
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't create rank function", ex);
+            }
+            mReadConns.add(conn);
+            LOGGER.config("new read connection, total: "+mReadConns.size());
+            return conn;
+        }
+    }
+
+    /** Number of read-only connections created so far. */
+    int getReadConnectionCount() {
+        synchronized (mReadConns) {
+            return mReadConns.size();
+        }
+    }
+
+    /**
+     * A read connection used by one thread, with the number of result sets
+     * that are not closed yet.
+     */
+    private final class ReadLease {
+        private final Thread owner;
+        private final Connection conn;
+        private int open = 1;
+
+        private ReadLease(Thread owner, Connection conn) {
+            this.owner = owner;
+            this.conn = conn;
+        }
+
+        /**
+         * Wrap a result set of this connection: closing it also closes the
+         * statement and releases the connection.
+         */
+        private ResultSet wrap(final PreparedStatement stat, ResultSet resultSet) {
+            return new ReadResultSet(resultSet, new Runnable() {
+                @Override
+                public void run() {
+                    closeQuietly(stat);
+                    Database.this.releaseReadConnection(ReadLease.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Relevance of a full-text search hit, computed from the FTS matchinfo
+     * 'pcx': the sum over all phrases and columns of the hits in this row
+     * divided by the hits in all rows.
+     */
+    private static final class RankFunction extends Function {
+        @Override
+        protected void xFunc() throws SQLException {
+            ByteBuffer buffer = ByteBuffer.wrap(this.value_blob(0));
+            buffer.order(ByteOrder.nativeOrder());
+            IntBuffer info = buffer.asIntBuffer();
+            int phrases = info.get(0);
+            int columns = info.get(1);
+            double score = 0;
+            for (int i = 0; i < phrases * columns; i++) {
+                int hitsRow = info.get(2 + i * 3);
+                int hitsAll = info.get(2 + i * 3 + 1);
+                if (hitsRow > 0)
+                    score += (double) hitsRow / hitsAll;
+            }
+            this.result(score);
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't close connection", ex);
+        }
+    }
+
+    private static void closeQuietly(Statement stat) {
+        if (stat == null)
+            return;
+        try {
+            stat.close();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't close statement", ex);
+        }
+    }
+
     /**
      * Add a new model / row to database.
      * @param table table name the values are inserted into
@@ -218,12 +756,14 @@ public final class Database {
 
         insert += StringUtils.join(vList, ", ") + ")";
 
-        try (PreparedStatement stat = mConn.prepareStatement(insert,
-                Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            PreparedStatement stat = this.getStatement(insert);
             insertValues(stat, values);
             stat.executeUpdate();
-            ResultSet keys = stat.getGeneratedKeys();
-            return keys.getInt(1);
+            this.written();
+            try (ResultSet keys = stat.getGeneratedKeys()) {
+                return keys.getInt(1);
+            }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute insert: " + insert + " " + values, ex);
             return -1;
@@ -246,25 +786,80 @@ public final class Database {
         for (String key : keyList)
             vList.add(key + " = ?");
 
-        update += StringUtils.join(vList, ", ") + " WHERE _id == " + id ;
+        // id is a parameter too, the statement only depends on the columns
+        update += StringUtils.join(vList, ", ") + " WHERE _id == ?";
         // note: looks like driver doesn't support "LIMIT"
         //update += " LIMIT 1";
 
-        try (PreparedStatement stat = mConn.prepareStatement(update, Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            PreparedStatement stat = this.getStatement(update);
             insertValues(stat, keyList, set);
+            stat.setInt(keyList.size() + 1, id);
             stat.executeUpdate();
-            ResultSet keys = stat.getGeneratedKeys();
-            return keys.getInt(1);
+            this.written();
+            try (ResultSet keys = stat.getGeneratedKeys()) {
+                return keys.getInt(1);
+            }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute update: " + update + " " + set, ex);
             return 0;
         }
     }
 
+    /**
+     * Get the cached prepared statement for a SQL string, or prepare and cache
+     * a new one. Only use it for the writer connection with lock held.
+     */
+    private PreparedStatement getStatement(String sql) throws SQLException {
+        if (!mCacheStatements) {
+            // the previous statement is not used anymore
+            closeQuietly(mUncachedStatement);
+            mUncachedStatement = mConn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            return mUncachedStatement;
+        }
+
+        PreparedStatement stat = mStatements.get(sql);
+        if (stat != null) {
+            stat.clearParameters();
+            return stat;
+        }
+
+        stat = mConn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        mStatements.put(sql, stat);
+        return stat;
+    }
+
+    /**
+     * Enable or disable caching of prepared statements for writing. If
+     * disabled, every write prepares a new statement. For benchmarks only.
+     */
+    synchronized void setStatementCache(boolean enabled) {
+        mCacheStatements = enabled;
+        closeQuietly(mUncachedStatement);
+        mUncachedStatement = null;
+    }
+
     public synchronized boolean execDelete(String table, int id) {
         LOGGER.info("deleting id "+id+" from table "+table);
         try (Statement stat = mConn.createStatement()) {
             stat.executeUpdate("DELETE FROM " + table + " WHERE _id = " + id);
+            this.written();
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't delete", ex);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Delete all rows from one table that match an arbitrary 'where' clause.
+     * Insecure to SQL injections, use with caution!
+     */
+    public synchronized boolean execDeleteWhereInsecure(String table, String where) {
+        LOGGER.info("deleting rows from table "+table+" where "+where);
+        try (Statement stat = mConn.createStatement()) {
+            stat.executeUpdate("DELETE FROM " + table + " WHERE " + where);
+            this.written();
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't delete", ex);
             return false;
@@ -293,6 +888,10 @@ public final class Database {
                 stat.setString(i+1, (String) value);
             } else if (value instanceof Integer) {
                 stat.setInt(i+1, (int) value);
+            } else if (value instanceof Long) {
+                stat.setLong(i+1, (long) value);
+            } else if (value instanceof byte[]) {
+                stat.setBytes(i+1, (byte[]) value);
             } else if (value instanceof Date) {
                 stat.setLong(i+1, ((Date) value).getTime());
             } else if (value instanceof Boolean) {
@@ -0,0 +1,160 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kontalk.model.InMessage;
+import org.kontalk.model.KonThread;
+
+/**
+ * Decryption stage for incoming messages.
+ * Messages are decrypted on a pool of worker threads, off the network thread.
+ * Messages of the same thread are processed one after another in the order
+ * they were queued, messages of different threads in parallel.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+final class Decrypter {
+    private final static Logger LOGGER = Logger.getLogger(Decrypter.class.getName());
+
+    private final Control mControl;
+
+    // waiting messages for each thread; this is also the lock for all
+    // scheduling fields
+    private final HashMap<KonThread, ArrayDeque<InMessage>> mPending = new HashMap<>();
+    /** Threads with waiting messages and no message currently processed. */
+    private final ArrayDeque<KonThread> mReady = new ArrayDeque<>();
+    private int mQueueSize = 0;
+
+    // metrics
+    private long mDecryptCount = 0;
+    private long mDecryptNanos = 0;
+    private long mMaxDecryptNanos = 0;
+    private int mMaxQueueSize = 0;
+
+    Decrypter(Control control) {
+        mControl = control;
+
+        int threads = Math.max(1, Config.getInstance().getInt(Config.MAIN_DECRYPT_THREADS));
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Worker(), "Decrypter "+i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Queue a message for decryption (and attachment download). The message
+     * should be saved before.
+     */
+    void queue(InMessage message) {
+        KonThread thread = message.getThread();
+        synchronized (mPending) {
+            ArrayDeque<InMessage> messages = mPending.get(thread);
+            if (messages == null) {
+                // no message of this thread is waiting or processed
+                messages = new ArrayDeque<>();
+                mPending.put(thread, messages);
+                mReady.add(thread);
+                mPending.notify();
+            }
+            messages.add(message);
+            mQueueSize++;
+            mMaxQueueSize = Math.max(mMaxQueueSize, mQueueSize);
+        }
+    }
+
+    /** Number of messages waiting for or in decryption. */
+    int getQueueSize() {
+        synchronized (mPending) {
+            return mQueueSize;
+        }
+    }
+
+    /** Statistics about decryption: number, latency and queue depth. */
+    String getStats() {
+        synchronized (mPending) {
+            long avgMillis = mDecryptCount == 0 ? 0 : mDecryptNanos / mDecryptCount / 1000000;
+            return "decrypted="+mDecryptCount+
+                    " queued="+mQueueSize+
+                    " maxQueued="+mMaxQueueSize+
+                    " avgTimeMs="+avgMillis+
+                    " maxTimeMs="+mMaxDecryptNanos / 1000000;
+        }
+    }
+
+    /** Get the next thread with waiting messages; blocking. */
+    private KonThread takeThread() throws InterruptedException {
+        synchronized (mPending) {
+            while (mReady.isEmpty())
+                mPending.wait();
+            return mReady.poll();
+        }
+    }
+
+    /** Process all waiting messages of one thread. */
+    private void process(KonThread thread) {
+        while (true) {
+            InMessage message;
+            synchronized (mPending) {
+                ArrayDeque<InMessage> messages = mPending.get(thread);
+                message = messages.poll();
+                if (message == null) {
+                    mPending.remove(thread);
+                    return;
+                }
+            }
+
+            long start = System.nanoTime();
+            try {
+                mControl.decryptAndDownload(message);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't decrypt message", ex);
+            }
+            long time = System.nanoTime() - start;
+            LOGGER.config("decrypted message in "+time / 1000000+" ms, id="+message.getID());
+
+            synchronized (mPending) {
+                mQueueSize--;
+                mDecryptCount++;
+                mDecryptNanos += time;
+                mMaxDecryptNanos = Math.max(mMaxDecryptNanos, time);
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                KonThread thread;
+                try {
+                    // blocking
+                    thread = Decrypter.this.takeThread();
+                } catch (InterruptedException ex) {
+                    LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                    return;
+                }
+                Decrypter.this.process(thread);
+            }
+        }
+    }
+}
@@ -18,33 +18,74 @@
 
 package org.kontalk.system;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.Optional;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
 import org.bouncycastle.openpgp.PGPException;
 import org.kontalk.Kontalk;
 import org.kontalk.client.DownloadClient;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.model.InMessage;
+import org.kontalk.model.KonThread;
 import org.kontalk.model.MessageContent.Attachment;
+import org.kontalk.model.ThreadList;
+import org.kontalk.util.MediaUtils;
 
 /**
  * Downloader for attachments.
+ * Downloads run in parallel on a pool of worker threads. Queued downloads are
+ * started by priority with a limit of concurrent downloads per host.
  * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
  */
-public class Downloader implements Runnable {
+public class Downloader {
     private final static Logger LOGGER = Logger.getLogger(Downloader.class.getName());
 
     private static Downloader INSTANCE = null;
 
-    private final LinkedBlockingQueue<InMessage> mQueue = new LinkedBlockingQueue<>();
+    /** Priority of a download, higher priorities are started first. */
+    public enum Priority {
+        /** Attachment is visible to the user. */
+        HIGH,
+        /** Attachment of a new message. */
+        NORMAL
+    }
+
+    /** Maximum size of thumbnails for image attachments. */
+    private static final int THUMBNAIL_WIDTH = 300;
+    private static final int THUMBNAIL_HEIGHT = 200;
 
     private final File mBaseDir;
+    private final File mThumbnailDir;
+
+    // waiting downloads, ordered by priority; this is also the lock for all
+    // scheduling fields
+    private final TreeSet<Task> mQueue = new TreeSet<>();
+    /** Waiting and running downloads. */
+    private final HashMap<InMessage, Task> mTasks = new HashMap<>();
+    /** Number of running downloads for each host. */
+    private final HashMap<String, Integer> mHostCount = new HashMap<>();
+    private final int mHostLimit;
+    private long mSequence = 0;
 
     private Downloader() {
         String dirPath = Kontalk.getConfigDir() + "/attachments";
@@ -52,20 +93,162 @@ public class Downloader implements Runnable {
         boolean created = mBaseDir.mkdirs();
         if (created)
             LOGGER.info("created download directory");
+
+        mThumbnailDir = new File(Kontalk.getConfigDir() + "/thumbnails");
+        if (mThumbnailDir.mkdirs())
+            LOGGER.info("created thumbnail directory");
+
+        mHostLimit = Math.max(1, Config.getInstance().getInt(Config.NET_DOWNLOAD_HOST_LIMIT));
+    }
+
+    private void start() {
+        int threads = Math.max(1, Config.getInstance().getInt(Config.NET_DOWNLOAD_THREADS));
+        for (int i = 0; i < threads; i++)
+            new Thread(new Worker(), "Downloader "+i).start();
+
+        // attachments of deleted threads are not needed anymore
+        ThreadList.getInstance().addObserver(new Observer() {
+            @Override
+            public void update(Observable o, Object arg) {
+                if (arg instanceof KonThread &&
+                        !ThreadList.getInstance().contains(((KonThread) arg).getID())) {
+                    KonThread thread = (KonThread) arg;
+                    Downloader.this.cancelAll(thread);
+                    Downloader.this.deleteAttachments(thread.getDeletedAttachments());
+                }
+            }
+        });
     }
 
     public void queueDownload(InMessage message) {
-        boolean added = mQueue.offer(message);
-        if (!added) {
-            LOGGER.warning("can't add message to download-queue");
+        this.queueDownload(message, Priority.NORMAL);
+    }
+
+    /**
+     * Queue the attachment of a message for downloading. If the message is
+     * already queued only the priority is raised.
+     */
+    public void queueDownload(InMessage message, Priority priority) {
+        if (!message.getContent().getAttachment().isPresent()) {
+            LOGGER.warning("no attachment in message");
+            return;
+        }
+        synchronized (mQueue) {
+            Task task = mTasks.get(message);
+            if (task != null) {
+                this.raisePriority(task, priority);
+                return;
+            }
+            String url = message.getContent().getAttachment().get().getURL();
+            task = new Task(message, getHost(url), priority, mSequence++);
+            mTasks.put(message, task);
+            mQueue.add(task);
+            mQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Download the attachment of a message as soon as possible, if it is
+     * waiting for download.
+     */
+    public void prioritize(InMessage message) {
+        synchronized (mQueue) {
+            Task task = mTasks.get(message);
+            if (task != null)
+                this.raisePriority(task, Priority.HIGH);
         }
     }
 
+    private void raisePriority(Task task, Priority priority) {
+        if (priority.compareTo(task.priority) >= 0)
+            return;
+        // re-insert for changing the order
+        boolean queued = mQueue.remove(task);
+        task.priority = priority;
+        if (queued)
+            mQueue.add(task);
+    }
+
+    /**
+     * Cancel the download of the attachment of a message, waiting or running.
+     */
+    public void cancel(InMessage message) {
+        DownloadClient client;
+        synchronized (mQueue) {
+            Task task = mTasks.get(message);
+            if (task == null)
+                return;
+            task.cancelled = true;
+            if (mQueue.remove(task)) {
+                mTasks.remove(message);
+                message.setAttachmentDownloadProgress(-3);
+                return;
+            }
+            client = task.client;
+        }
+        if (client != null)
+            client.abort();
+    }
+
+    /** Cancel all downloads of messages in a thread. */
+    private void cancelAll(KonThread thread) {
+        List<InMessage> messages = new ArrayList<>();
+        synchronized (mQueue) {
+            for (InMessage message : mTasks.keySet()) {
+                if (message.getThread() == thread)
+                    messages.add(message);
+            }
+        }
+        for (InMessage message : messages)
+            this.cancel(message);
+    }
+
     public File getBaseDir() {
         return mBaseDir;
     }
 
-    private void downloadAsync(final InMessage message) {
+    /** Get the next task which host limit is not reached yet; blocking. */
+    private Task takeTask() throws InterruptedException {
+        synchronized (mQueue) {
+            while (true) {
+                for (Task task : mQueue) {
+                    int count = mHostCount.getOrDefault(task.host, 0);
+                    if (count < mHostLimit) {
+                        mQueue.remove(task);
+                        mHostCount.put(task.host, count + 1);
+                        return task;
+                    }
+                }
+                mQueue.wait();
+            }
+        }
+    }
+
+    private void taskFinished(Task task) {
+        synchronized (mQueue) {
+            mTasks.remove(task.message);
+            int count = mHostCount.get(task.host) - 1;
+            if (count > 0)
+                mHostCount.put(task.host, count);
+            else
+                mHostCount.remove(task.host);
+            // a task for this host may be startable now
+            mQueue.notifyAll();
+        }
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = new URI(url).getHost();
+            return host != null ? host : "";
+        } catch (URISyntaxException ex) {
+            LOGGER.log(Level.WARNING, "invalid URL: "+url, ex);
+            return "";
+        }
+    }
+
+    private void download(Task task) {
+        final InMessage message = task.message;
         Optional<PersonalKey> optKey = AccountLoader.getInstance().getPersonalKey();
         if (!optKey.isPresent()) {
             LOGGER.log(Level.WARNING, "personal key not loaded");
@@ -91,6 +274,12 @@ public class Downloader implements Runnable {
                 bridgeCert,
                 validateCertificate,
                 listener);
+        synchronized (mQueue) {
+            if (task.cancelled)
+                return;
+            // can be aborted from now on
+            task.client = client;
+        }
 
         Optional<Attachment> optAttachment = message.getContent().getAttachment();
         if (!optAttachment.isPresent()) {
@@ -99,7 +288,7 @@ public class Downloader implements Runnable {
         }
         Attachment attachment = optAttachment.get();
 
-        String path = client.download(attachment.getURL(), mBaseDir);
+        String path = client.download(attachment.getURL(), mBaseDir, message.getID());
         if (path.isEmpty()) {
             // could not be downloaded
             return;
@@ -111,31 +300,153 @@ public class Downloader implements Runnable {
         if (attachment.getCoderStatus().isEncrypted()) {
             Coder.processAttachment(message);
         }
+
+        // attachment was replaced
+        optAttachment = message.getContent().getAttachment();
+        if (optAttachment.isPresent() &&
+                !optAttachment.get().getCoderStatus().isEncrypted() &&
+                optAttachment.get().getMimeType().startsWith("image"))
+            this.createThumbnail(optAttachment.get().getFileName());
+    }
+
+    /**
+     * Delete attachment files and their thumbnails.
+     * @param fileNames file names in the attachment directory
+     */
+    private void deleteAttachments(List<String> fileNames) {
+        for (String fileName : fileNames) {
+            // never trust stored data
+            File file = new File(mBaseDir, new File(fileName).getName());
+            this.deleteThumbnails(file, null);
+            if (file.isFile() && !file.delete())
+                LOGGER.warning("can't delete attachment: "+file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Get the thumbnail for an image attachment, if it was created.
+     * @param fileName file name of the attachment in the attachment directory
+     */
+    public Optional<Path> getThumbnail(String fileName) {
+        File thumbnail = this.thumbnailFile(new File(mBaseDir, fileName));
+        return thumbnail.isFile() ?
+                Optional.of(thumbnail.toPath()) :
+                Optional.<Path>empty();
+    }
+
+    /**
+     * Thumbnail file for an attachment, the name depends on the file name and
+     * modification time of the attachment.
+     */
+    private File thumbnailFile(File file) {
+        return new File(mThumbnailDir, file.getName() + "_" + file.lastModified() + ".png");
+    }
+
+    private void createThumbnail(String fileName) {
+        File file = new File(mBaseDir, fileName);
+        File thumbnail = this.thumbnailFile(file);
+        if (thumbnail.exists())
+            return;
+
+        Optional<BufferedImage> optImage =
+                MediaUtils.readImage(file, THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
+        if (!optImage.isPresent())
+            return;
+        BufferedImage image =
+                MediaUtils.scaleImage(optImage.get(), THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT);
+
+        // write to temporary file first, readers never see a partial file
+        File tmpFile = new File(mThumbnailDir, thumbnail.getName() + ".tmp");
+        try {
+            if (!ImageIO.write(image, "png", tmpFile)) {
+                LOGGER.warning("can't find png writer");
+                return;
+            }
+            Files.move(tmpFile.toPath(), thumbnail.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't write thumbnail", ex);
+            tmpFile.delete();
+            return;
+        }
+
+        // thumbnails of older versions of the file
+        this.deleteThumbnails(file, thumbnail);
+    }
+
+    /**
+     * Delete all thumbnails of an attachment file.
+     * @param keep thumbnail that is not deleted, nullable
+     */
+    private void deleteThumbnails(File file, File keep) {
+        final Pattern pattern = Pattern.compile(Pattern.quote(file.getName()) + "_\\d+\\.png");
+        File[] thumbnails = mThumbnailDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return pattern.matcher(f.getName()).matches();
+            }
+        });
+        if (thumbnails == null)
+            return;
+        for (File thumbnail : thumbnails) {
+            if (!thumbnail.equals(keep) && !thumbnail.delete())
+                LOGGER.warning("can't delete thumbnail: "+thumbnail.getAbsolutePath());
+        }
     }
 
     public String getAttachmentDir() {
         return mBaseDir.getAbsolutePath();
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            InMessage m;
-            try {
-                // blocking
-                m = mQueue.take();
-            } catch (InterruptedException ex) {
-                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
-                return;
+    private final class Task implements Comparable<Task> {
+        private final InMessage message;
+        private final String host;
+        private final long sequence;
+        private Priority priority;
+        private boolean cancelled = false;
+        /** Set when running. */
+        private DownloadClient client = null;
+
+        private Task(InMessage message, String host, Priority priority, long sequence) {
+            this.message = message;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        // first by priority, then first come, first served
+        @Override
+        public int compareTo(Task o) {
+            int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    // blocking
+                    task = Downloader.this.takeTask();
+                } catch (InterruptedException ex) {
+                    LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                    return;
+                }
+                try {
+                    Downloader.this.download(task);
+                } finally {
+                    Downloader.this.taskFinished(task);
+                }
             }
-            this.downloadAsync(m);
         }
     }
 
-    public static Downloader getInstance() {
+    public synchronized static Downloader getInstance() {
         if (INSTANCE == null) {
             INSTANCE = new Downloader();
-            new Thread(INSTANCE).start();
+            INSTANCE.start();
         }
         return INSTANCE;
     }
@@ -18,9 +18,19 @@
 
 package org.kontalk.util;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import org.kontalk.Kontalk;
 import org.newdawn.easyogg.OggClip;
 
@@ -43,6 +53,60 @@ public class MediaUtils {
         }
     }
 
+    /**
+     * Read an image, subsampled while decoding so that it is not much larger
+     * than needed to fit into the specified size.
+     */
+    public static Optional<BufferedImage> readImage(File file, int width, int height) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                LOGGER.warning("can't open image file: "+file);
+                return Optional.empty();
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                LOGGER.warning("can't find image reader for "+file);
+                return Optional.empty();
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int iw = reader.getWidth(0);
+                int ih = reader.getHeight(0);
+                int sub = (int) Math.max(1,
+                        Math.floor(Math.max(iw / (double) width, ih / (double) height)));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(sub, sub, 0, 0);
+                return Optional.of(reader.read(0, param));
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't read image", ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Scale image down to fit into width and height, preserving ratio.
+     */
+    public static BufferedImage scaleImage(BufferedImage image, int width, int height) {
+        int iw = image.getWidth();
+        int ih = image.getHeight();
+        if (iw <= width && ih <= height)
+            return image;
+        double scale = Math.min(width / (iw * 1.0), height / (ih * 1.0));
+        int w = Math.max(1, (int) (iw * scale));
+        int h = Math.max(1, (int) (ih * scale));
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, w, h, null);
+        g.dispose();
+        return scaled;
+    }
+
     private static void play(String fileName) {
         if (mAudioClip != null && !mAudioClip.stopped())
             // already playing something
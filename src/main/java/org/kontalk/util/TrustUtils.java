@@ -32,7 +32,11 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.ssl.KeyManager;
@@ -56,13 +60,26 @@ public class TrustUtils {
     private static TrustManager BLIND_TM = null;
     private static KeyStore MERGED_TS = null;
 
+    /** Maximum number of cached SSL contexts. */
+    private static final int CONTEXT_CACHE_SIZE = 4;
+    /** Recently created SSL contexts by key, certificate and validation mode. */
+    private static final LinkedHashMap<List<Object>, SSLContext> CONTEXT_CACHE =
+            new LinkedHashMap<List<Object>, SSLContext>(8, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, SSLContext> eldest) {
+                    return this.size() > CONTEXT_CACHE_SIZE;
+                }
+            };
+
     /**
      * Get a custom SSL context for secure server connections. The key store of
      * the context contains the private key and bridge certificate. The trust
      * manager contains system and own certificates or blindly accepts every
      * server certificate.
+     * Contexts are cached, the same arguments return the same context. This
+     * also allows resuming TLS sessions.
      */
-    public static SSLContext getCustomSSLContext(
+    public static synchronized SSLContext getCustomSSLContext(
             PrivateKey privateKey,
             X509Certificate bridgeCert,
             boolean validateCertificate)
@@ -73,6 +90,11 @@ public class TrustUtils {
             UnrecoverableKeyException,
             NoSuchProviderException,
             KeyManagementException {
+        List<Object> cacheKey = Arrays.<Object>asList(privateKey, bridgeCert, validateCertificate);
+        SSLContext cached = CONTEXT_CACHE.get(cacheKey);
+        if (cached != null)
+            return cached;
+
         // in-memory keystore
         KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
         keystore.load(null, null);
@@ -101,6 +123,7 @@ public class TrustUtils {
         }
         SSLContext ctx = SSLContext.getInstance("TLS");
         ctx.init(km, tm, null);
+        CONTEXT_CACHE.put(cacheKey, ctx);
         return ctx;
     }
 
@@ -21,42 +21,124 @@ package org.kontalk.view;
 import com.alee.extended.label.WebLinkLabel;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
-import java.awt.image.ImageObserver;
 import java.io.File;
-import java.io.IOException;
-import java.util.logging.Level;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.SwingUtilities;
+import org.kontalk.util.MediaUtils;
 
 /**
  * Static utility functions for loading images in Swing.
+ *
+ * Images for labels are decoded on a small thread pool with a bounded queue,
+ * subsampled while reading to about the target size and cached in memory.
+ * If the queue is full the oldest task is dropped and cancelled, callers
+ * should request the image again if it is still needed.
  * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
  */
 class ImageLoader {
     private final static Logger LOGGER = Logger.getLogger(ImageLoader.class.getName());
 
+    /** Maximum size of images shown in labels. */
+    private static final int ICON_WIDTH = 300;
+    private static final int ICON_HEIGHT = 200;
+
+    private static final int DECODE_THREADS = 2;
+    /** Maximum number of waiting decode tasks, the oldest ones are dropped. */
+    private static final int DECODE_QUEUE = 32;
+    /** Maximum size of the icon cache, in bytes of decoded pixels. */
+    private static final long CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            DECODE_THREADS, DECODE_THREADS,
+            0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(DECODE_QUEUE),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Image loader");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            },
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    if (executor.isShutdown())
+                        return;
+                    // drop the oldest, its future is done then
+                    Runnable oldest = executor.getQueue().poll();
+                    if (oldest instanceof Future)
+                        ((Future<?>) oldest).cancel(false);
+                    executor.execute(r);
+                }
+            });
+
+    /** Decoded icons by path and modification time, least recently used first. */
+    private static final LinkedHashMap<String, ImageIcon> CACHE =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private static long CACHE_SIZE = 0;
+
     private ImageLoader() {}
 
-    // TODO Swing + async == a damn mess
-    static void setImageIconAsync(WebLinkLabel view, String path) {
-        AsyncLoader run = new AsyncLoader(view, path);
-        // TODO all at once? queue not that good either
-        //new Thread(run).start();
-        run.run();
+    /**
+     * Set the image at path as icon of the label. The image is loaded in
+     * background, except if it is cached.
+     * @return the task, cancel it if the image is not needed anymore; it is
+     * cancelled if it was dropped from the queue
+     */
+    static Future<?> setImageIconAsync(WebLinkLabel view, String path) {
+        String key = cacheKey(path);
+        ImageIcon icon = getCached(key);
+        if (icon != null) {
+            view.setIcon(icon);
+            return new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, null);
+        }
+
+        FutureTask<Void> task = new FutureTask<>(new AsyncLoader(view, path, key), null);
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    private static String cacheKey(String path) {
+        return path + "@" + new File(path).lastModified();
+    }
+
+    private static ImageIcon getCached(String key) {
+        synchronized (CACHE) {
+            return CACHE.get(key);
+        }
     }
 
-    private static BufferedImage readImage(String path) {
-        try {
-            BufferedImage image = ImageIO.read(new File(path));
-            if (image != null) {
-                return image;
+    private static void putCached(String key, ImageIcon icon) {
+        long size = 4L * icon.getIconWidth() * icon.getIconHeight();
+        synchronized (CACHE) {
+            ImageIcon old = CACHE.put(key, icon);
+            if (old != null)
+                CACHE_SIZE -= 4L * old.getIconWidth() * old.getIconHeight();
+            CACHE_SIZE += size;
+            Iterator<ImageIcon> it = CACHE.values().iterator();
+            while (CACHE_SIZE > CACHE_BYTES && it.hasNext()) {
+                ImageIcon eldest = it.next();
+                CACHE_SIZE -= 4L * eldest.getIconWidth() * eldest.getIconHeight();
+                it.remove();
             }
-        } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't read image", ex);
         }
-        return new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
     }
 
     /**
@@ -79,41 +161,36 @@ class ImageLoader {
         return image.getScaledInstance((int) (iw * scale), (int) (ih * scale), Image.SCALE_FAST);
     }
 
-    private final static class AsyncLoader implements Runnable, ImageObserver {
+    private final static class AsyncLoader implements Runnable {
 
         private final WebLinkLabel view;
         private final String path;
+        private final String key;
 
-        public AsyncLoader(WebLinkLabel view, String path) {
+        public AsyncLoader(WebLinkLabel view, String path, String key) {
             this.view = view;
             this.path = path;
+            this.key = key;
         }
 
         @Override
         public void run() {
-            BufferedImage image = readImage(path);
-            Image scaledImage = scale(image, 300, 200, false);
-            if (scaledImage.getWidth(view) == -1)
+            Optional<BufferedImage> optImage =
+                    MediaUtils.readImage(new File(path), ICON_WIDTH, ICON_HEIGHT);
+            if (Thread.currentThread().isInterrupted())
                 return;
-            this.setOnEDT(scaledImage);
-        }
-
-        @Override
-        public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
-            // ignore if image is not completely loaded
-            if ((infoflags & ImageObserver.ALLBITS) == 0) {
-                return true;
+            final ImageIcon icon;
+            if (optImage.isPresent()) {
+                icon = new ImageIcon(MediaUtils.scaleImage(optImage.get(), ICON_WIDTH, ICON_HEIGHT));
+                putCached(key, icon);
+            } else {
+                // not cached, the file may be complete next time
+                icon = new ImageIcon(new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB));
             }
-
-            this.setOnEDT(img);
-            return false;
-        }
-
-        private void setOnEDT(final Image image) {
             SwingUtilities.invokeLater(new Runnable() {
                 @Override
                 public void run() {
-                    view.setIcon(new ImageIcon(image));
+                    view.setIcon(icon);
                 }
             });
         }
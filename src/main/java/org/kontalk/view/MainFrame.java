@@ -30,6 +30,7 @@ import com.alee.laf.list.WebList;
 import com.alee.laf.menu.WebMenu;
 import com.alee.laf.menu.WebMenuBar;
 import com.alee.laf.menu.WebMenuItem;
+import com.alee.laf.menu.WebPopupMenu;
 import com.alee.laf.optionpane.WebOptionPane;
 import com.alee.laf.panel.WebPanel;
 import com.alee.laf.rootpane.WebDialog;
@@ -57,7 +58,11 @@ import java.awt.event.WindowEvent;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.swing.Icon;
+import javax.swing.SwingWorker;
 import static javax.swing.JSplitPane.VERTICAL_SPLIT;
 import static javax.swing.WindowConstants.DO_NOTHING_ON_CLOSE;
 import javax.swing.event.DocumentEvent;
@@ -66,6 +71,7 @@ import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import org.kontalk.system.Config;
 import org.kontalk.Kontalk;
+import org.kontalk.model.MessageList;
 import org.kontalk.system.Control;
 import org.kontalk.util.Tr;
 
@@ -74,6 +80,7 @@ import org.kontalk.util.Tr;
  * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
  */
 final class MainFrame extends WebFrame {
+    private final static Logger LOGGER = Logger.getLogger(MainFrame.class.getName());
 
     static enum Tab {THREADS, USER};
 
@@ -204,7 +211,7 @@ final class MainFrame extends WebFrame {
 
         // ...left...
         WebPanel sidePanel = new WebPanel(false);
-        WebPanel searchPanel = createSearchPanel(new TableView[]{threadList, userList}, threadView);
+        WebPanel searchPanel = createSearchPanel(new TableView[]{threadList, userList}, threadView, mView);
         sidePanel.add(searchPanel, BorderLayout.NORTH);
         mTabbedPane = new WebTabbedPane(WebTabbedPane.LEFT);
         WebButton newThreadButton = new WebButton(Tr.tr("New"));
@@ -467,7 +474,9 @@ final class MainFrame extends WebFrame {
         }
     }
 
-    private static WebPanel createSearchPanel(final TableView[] tables, final ThreadView threadView) {
+    private static WebPanel createSearchPanel(final TableView[] tables,
+            final ThreadView threadView,
+            final View view) {
         WebPanel searchPanel = new WebPanel();
         final WebTextField searchField = new WebTextField();
         searchField.setInputPrompt(Tr.tr("Search..."));
@@ -491,6 +500,33 @@ final class MainFrame extends WebFrame {
                 threadView.filterCurrentList(searchText);
             }
         });
+        // enter searches the messages of all threads, in background
+        searchField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                final String searchText = searchField.getText();
+                new SwingWorker<List<MessageList.SearchHit>, Void>() {
+                    @Override
+                    protected List<MessageList.SearchHit> doInBackground() {
+                        return view.searchMessages(searchText);
+                    }
+                    @Override
+                    protected void done() {
+                        List<MessageList.SearchHit> hits;
+                        try {
+                            hits = this.get();
+                        } catch (InterruptedException | ExecutionException ex) {
+                            LOGGER.log(Level.WARNING, "can't search messages", ex);
+                            return;
+                        }
+                        // search text changed in the meantime
+                        if (!searchText.equals(searchField.getText()))
+                            return;
+                        showSearchHits(searchField, hits, view);
+                    }
+                }.execute();
+            }
+        });
         Icon clearIcon = View.getIcon("ic_ui_clear.png");
         WebButton clearSearchButton = new WebButton(clearIcon);
         clearSearchButton.setUndecorated(true);
@@ -507,6 +543,30 @@ final class MainFrame extends WebFrame {
         return searchPanel;
     }
 
+    private static void showSearchHits(WebTextField searchField,
+            List<MessageList.SearchHit> hits,
+            final View view) {
+        WebPopupMenu hitMenu = new WebPopupMenu();
+        if (hits.isEmpty()) {
+            WebMenuItem noHitItem = new WebMenuItem(Tr.tr("No messages found"));
+            noHitItem.setEnabled(false);
+            hitMenu.add(noHitItem);
+        }
+        for (final MessageList.SearchHit hit : hits) {
+            WebMenuItem hitItem = new WebMenuItem(hit.thread.getSubject() +
+                    ": " + hit.snippet);
+            hitItem.setToolTipText(TableView.TOOLTIP_DATE_FORMAT.format(hit.date));
+            hitItem.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent event) {
+                    view.showSearchHit(hit);
+                }
+            });
+            hitMenu.add(hitItem);
+        }
+        hitMenu.show(searchField, 0, searchField.getHeight());
+    }
+
     private static WebScrollPane createTablePane(final TableView<?, ?> table,
             Component newButton,
             String overlayText) {
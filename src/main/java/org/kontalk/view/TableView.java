@@ -31,11 +31,13 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.TreeMap;
 import javax.swing.JTable;
 import javax.swing.RowFilter;
@@ -43,7 +45,7 @@ import javax.swing.RowFilter.Entry;
 import javax.swing.RowSorter;
 import javax.swing.SortOrder;
 import javax.swing.SwingUtilities;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableRowSorter;
 import org.ocpsoft.prettytime.PrettyTime;
 
@@ -57,8 +59,8 @@ import org.ocpsoft.prettytime.PrettyTime;
  */
 abstract class TableView<I extends TableView<I, V>.TableItem, V extends Observable & Comparable<V>> extends WebTable implements Observer {
 
-    private final DefaultTableModel mModel;
-    private final TableRowSorter<DefaultTableModel> mRowSorter;
+    private final ItemModel mModel;
+    private final TableRowSorter<ItemModel> mRowSorter;
     /** Map synced with model for faster access. */
     private final SortedMap<V, I> mItems = new TreeMap<>();
 
@@ -73,13 +75,7 @@ abstract class TableView<I extends TableView<I, V>.TableItem, V extends Observab
     @SuppressWarnings("unchecked")
     TableView() {
         // model
-        mModel = new DefaultTableModel(0, 1) {
-            // row sorter needs this
-            @Override
-            public Class<?> getColumnClass(int columnIndex) {
-                return TableView.this.getColumnClass(columnIndex);
-            }
-        };
+        mModel = new ItemModel();
         this.setModel(mModel);
 
         // sorter
@@ -90,9 +86,9 @@ abstract class TableView<I extends TableView<I, V>.TableItem, V extends Observab
         mRowSorter.setSortsOnUpdates(true);
         mRowSorter.sort();
         // filter
-        RowFilter<DefaultTableModel, Integer> rowFilter = new RowFilter<DefaultTableModel, Integer>() {
+        RowFilter<ItemModel, Integer> rowFilter = new RowFilter<ItemModel, Integer>() {
         @Override
-        public boolean include(Entry<? extends DefaultTableModel, ? extends Integer> entry) {
+        public boolean include(Entry<? extends ItemModel, ? extends Integer> entry) {
                 I i = (I) entry.getValue(0);
                 return i.contains(mSearch);
             }
@@ -137,43 +133,94 @@ abstract class TableView<I extends TableView<I, V>.TableItem, V extends Observab
         return mItems.containsKey(value);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Return the values of a sorted set that are not in this view. The set
+     * must use the natural ordering of the values.
+     * Usually values are only added before the first or after the last
+     * item, only these ranges are checked then. The whole set is checked
+     * only if the sizes don't add up.
+     * Iterating over the set must be safe (i.e. synchronized if needed).
+     */
+    protected List<V> getMissing(SortedSet<V> values) {
+        List<V> missing = new ArrayList<>();
+        if (mItems.isEmpty()) {
+            missing.addAll(values);
+            return missing;
+        }
+        missing.addAll(values.headSet(mItems.firstKey()));
+        for (V value : values.tailSet(mItems.lastKey())) {
+            if (!mItems.containsKey(value))
+                missing.add(value);
+        }
+        if (mItems.size() + missing.size() == values.size())
+            return missing;
+
+        // values in between are missing or items were removed
+        missing.clear();
+        for (V value : values) {
+            if (!mItems.containsKey(value))
+                missing.add(value);
+        }
+        return missing;
+    }
+
+    /**
+     * Sync the items with a set of values: items for values not in the set
+     * are removed, the new items are added. Only the changed rows are updated
+     * in the table model.
+     * @param newItems items for all values that are not in this view yet
+     */
     protected void sync(Set<V> values, Set<I> newItems) {
-        // TODO performance
-        // remove old
-        for (int i=0; i < mModel.getRowCount(); i++) {
-            I item = (I) mModel.getValueAt(i, 0);
-            if (!values.contains(item.mValue)) {
+        // if the sizes add up no item was removed, skip the check
+        if (mItems.size() + newItems.size() != values.size()) {
+            Set<I> removed = new HashSet<>();
+            for (I item : mItems.values()) {
+                if (!values.contains(item.mValue))
+                    removed.add(item);
+            }
+            for (I item : removed) {
                 item.onRemove();
                 item.mValue.deleteObserver(item);
-                mModel.removeRow(i);
-                i--;
+                mItems.remove(item.mValue);
             }
+            mModel.remove(removed);
         }
+
         // add new
+        this.addItems(newItems);
+    }
+
+    /**
+     * Add new items without checking for old ones. Items with a value that is
+     * already in this view are ignored.
+     */
+    protected void addItems(Set<I> newItems) {
+        List<I> added = new ArrayList<>(newItems.size());
         for (I item : newItems) {
+            if (mItems.containsKey(item.mValue))
+                continue;
             item.mValue.addObserver(item);
             mItems.put(item.mValue, item);
-            mModel.addRow(new Object[]{item});
+            added.add(item);
         }
+        mModel.add(added);
     }
 
-    @SuppressWarnings("unchecked")
     protected I getDisplayedItemAt(int i) {
-        return (I) mModel.getValueAt(mRowSorter.convertRowIndexToModel(i), 0);
+        return mModel.getValueAt(mRowSorter.convertRowIndexToModel(i), 0);
     }
 
     protected void clearItems() {
         for (TableItem i : mItems.values()) {
+            i.onRemove();
             i.mValue.deleteObserver(i);
         }
-        mModel.setRowCount(0);
+        mModel.clear();
         mItems.clear();
     }
 
-    @SuppressWarnings("unchecked")
     protected I getSelectedItem() {
-        return (I) mModel.getValueAt(mRowSorter.convertRowIndexToModel(this.getSelectedRow()), 0);
+        return mModel.getValueAt(mRowSorter.convertRowIndexToModel(this.getSelectedRow()), 0);
     }
 
     // nullable
@@ -199,6 +246,19 @@ abstract class TableView<I extends TableView<I, V>.TableItem, V extends Observab
             this.setSelectedItem(0);
     }
 
+    /** Scroll to the item containing the value specified (if displayed). */
+    protected void scrollToValue(V value) {
+        I item = mItems.get(value);
+        if (item == null)
+            return;
+        int i = mModel.indexOf(item);
+        if (i < 0)
+            return;
+        int row = mRowSorter.convertRowIndexToView(i);
+        if (row >= 0)
+            this.scrollRectToVisible(this.getCellRect(row, 0, true));
+    }
+
     protected void setSelectedItem(int i) {
         if (i >= mModel.getRowCount())
             return;
@@ -309,6 +369,86 @@ abstract class TableView<I extends TableView<I, V>.TableItem, V extends Observab
         }
     }
 
+    /**
+     * Table model with one item per row. Changes fire events only for the
+     * affected rows.
+     */
+    private final class ItemModel extends AbstractTableModel {
+
+        private final List<I> mRows = new ArrayList<>();
+
+        @Override
+        public int getRowCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return 1;
+        }
+
+        @Override
+        public I getValueAt(int rowIndex, int columnIndex) {
+            return mRows.get(rowIndex);
+        }
+
+        // row sorter needs this
+        @Override
+        public Class<?> getColumnClass(int columnIndex) {
+            return TableView.this.getColumnClass(columnIndex);
+        }
+
+        // editing is used to forward mouse events
+        @Override
+        public boolean isCellEditable(int rowIndex, int columnIndex) {
+            return true;
+        }
+
+        @Override
+        public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+            // editor value is the item itself, nothing changes
+        }
+
+        private int indexOf(I item) {
+            return mRows.indexOf(item);
+        }
+
+        private void add(List<I> items) {
+            if (items.isEmpty())
+                return;
+            int first = mRows.size();
+            mRows.addAll(items);
+            this.fireTableRowsInserted(first, mRows.size() - 1);
+        }
+
+        private void remove(Set<I> items) {
+            if (items.isEmpty())
+                return;
+            // remove ranges of adjacent rows, starting at the end
+            int i = mRows.size() - 1;
+            while (i >= 0) {
+                if (!items.contains(mRows.get(i))) {
+                    i--;
+                    continue;
+                }
+                int last = i;
+                while (i > 0 && items.contains(mRows.get(i - 1)))
+                    i--;
+                mRows.subList(i, last + 1).clear();
+                this.fireTableRowsDeleted(i, last);
+                i--;
+            }
+        }
+
+        private void clear() {
+            int size = mRows.size();
+            if (size == 0)
+                return;
+            mRows.clear();
+            this.fireTableRowsDeleted(0, size - 1);
+        }
+    }
+
     private class TableRenderer extends WebTableCellRenderer {
         // return for each item (value) in the list/table the component to
         // render - which is the item itself here
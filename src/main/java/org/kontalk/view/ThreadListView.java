@@ -153,12 +153,10 @@ final class ThreadListView extends TableView<ThreadItem, KonThread> {
 
     @Override
     protected void updateOnEDT(Object arg) {
-        // TODO, performance
         Set<ThreadItem> newItems = new HashSet<>();
-        Set<KonThread> threads = mThreadList.getAll();
-        for (KonThread thread: threads)
-            if (!this.containsValue(thread))
-                newItems.add(new ThreadItem(thread));
+        SortedSet<KonThread> threads = mThreadList.getAll();
+        for (KonThread thread: this.getMissing(threads))
+            newItems.add(new ThreadItem(thread));
         this.sync(threads, newItems);
     }
 
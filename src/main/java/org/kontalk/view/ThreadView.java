@@ -39,6 +39,8 @@ import java.awt.GradientPaint;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -54,13 +56,18 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Optional;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import javax.swing.AbstractCellEditor;
@@ -68,6 +75,7 @@ import javax.swing.Icon;
 import javax.swing.JTable;
 import javax.swing.JViewport;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.table.TableCellEditor;
 import javax.swing.text.AbstractDocument;
 import javax.swing.text.BoxView;
@@ -112,10 +120,26 @@ final class ThreadView extends ScrollPane implements Observer {
 
     private final View mView;
 
-    private final Map<Integer, MessageList> mThreadCache = new HashMap<>();
+    /** Views of the recently shown threads, least recently shown first. */
+    private final Map<Integer, MessageList> mThreadCache =
+            new LinkedHashMap<Integer, MessageList>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, MessageList> eldest) {
+                    int max = Math.max(1, Config.getInstance().getInt(Config.VIEW_THREAD_CACHE));
+                    if (this.size() <= max)
+                        return false;
+                    // the current thread was accessed last and is never evicted
+                    ThreadView.this.releaseList(eldest.getValue());
+                    return true;
+                }
+            };
     private Background mDefaultBG;
 
     private boolean mScrollDown = false;
+    // a page of older messages or a search hit is loading
+    private boolean mLoadingOlder = false;
+    // search hit to show when the running load is done
+    private Optional<Integer> mQueuedMessage = Optional.empty();
 
     ThreadView(View view) {
         super(null);
@@ -132,6 +156,17 @@ final class ThreadView extends ScrollPane implements Observer {
                     mScrollDown = false;
                 if (mScrollDown)
                     e.getAdjustable().setValue(e.getAdjustable().getMaximum());
+                // scrolled to the top, show older messages
+                else if (!e.getValueIsAdjusting() &&
+                        e.getValue() == e.getAdjustable().getMinimum())
+                    ThreadView.this.loadOlderMessages();
+
+                // free the content of items scrolled out of view
+                if (!e.getValueIsAdjusting()) {
+                    Optional<MessageList> optList = ThreadView.this.getCurrentList();
+                    if (optList.isPresent())
+                        optList.get().releaseHidden();
+                }
             }
         });
 
@@ -178,11 +213,117 @@ final class ThreadView extends ScrollPane implements Observer {
             mThreadCache.put(thread.getID(), newMessageList);
         }
         MessageList table = mThreadCache.get(thread.getID());
+        if (table != this.getCurrentList().orElse(null))
+            // a queued search hit belongs to the previous thread
+            mQueuedMessage = Optional.empty();
         this.getViewport().setView(table);
 
         thread.setRead();
     }
 
+    /**
+     * Scroll to a message of the currently shown thread, older messages are
+     * loaded in background if needed.
+     */
+    void showMessage(final int messageID) {
+        Optional<MessageList> optList = this.getCurrentList();
+        if (!optList.isPresent())
+            return;
+        final MessageList list = optList.get();
+        if (mLoadingOlder) {
+            // the page start can't change during a load, show it afterwards
+            mQueuedMessage = Optional.of(messageID);
+            return;
+        }
+        // no paged loading in between
+        mLoadingOlder = true;
+        new SwingWorker<Optional<KonMessage>, Void>() {
+            @Override
+            protected Optional<KonMessage> doInBackground() {
+                // observers are notified, new items are added to the list
+                return org.kontalk.model.MessageList.getInstance()
+                        .loadUntil(list.getThread(), messageID);
+            }
+            @Override
+            protected void done() {
+                ThreadView.this.loadingDone();
+                Optional<KonMessage> optMessage;
+                try {
+                    optMessage = this.get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, "can't load message", ex);
+                    return;
+                }
+                if (!optMessage.isPresent() ||
+                        ThreadView.this.getCurrentList().orElse(null) != list)
+                    return;
+                mScrollDown = false;
+                list.scrollToValue(optMessage.get());
+            }
+        }.execute();
+    }
+
+    /** Detach a thread view from the model, it can't be used anymore. */
+    private void releaseList(MessageList list) {
+        list.clearItems();
+        list.getThread().deleteObserver(list);
+    }
+
+    /**
+     * Load the next page of older messages of the current thread in
+     * background, only one page is loaded at a time.
+     */
+    private void loadOlderMessages() {
+        if (mLoadingOlder)
+            return;
+        Optional<MessageList> optList = this.getCurrentList();
+        if (!optList.isPresent())
+            return;
+        final MessageList list = optList.get();
+        final KonThread thread = list.getThread();
+        final org.kontalk.model.MessageList messageList =
+                org.kontalk.model.MessageList.getInstance();
+        if (!messageList.hasOlder(thread) || thread.getMessages().isEmpty())
+            return;
+
+        final KonMessage first = thread.getMessages().first();
+        mLoadingOlder = true;
+        new SwingWorker<Integer, Void>() {
+            @Override
+            protected Integer doInBackground() {
+                // observers are notified, new items are added to the list
+                return messageList.loadOlder(thread);
+            }
+            @Override
+            protected void done() {
+                ThreadView.this.loadingDone();
+                int added;
+                try {
+                    added = this.get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, "can't load older messages", ex);
+                    return;
+                }
+                if (added > 0 && ThreadView.this.getCurrentList().orElse(null) == list)
+                    // stay at the message that was on top before
+                    list.scrollToValue(first);
+            }
+        }.execute();
+    }
+
+    /**
+     * Called by the worker that set the loading flag when it is done. A
+     * queued search hit is loaded next.
+     */
+    private void loadingDone() {
+        mLoadingOlder = false;
+        if (mQueuedMessage.isPresent()) {
+            int messageID = mQueuedMessage.get();
+            mQueuedMessage = Optional.empty();
+            this.showMessage(messageID);
+        }
+    }
+
     void setColor(Color color) {
         this.getViewport().setBackground(color);
     }
@@ -224,11 +365,9 @@ final class ThreadView extends ScrollPane implements Observer {
             KonThread thread = (KonThread) arg;
             if (!ThreadList.getInstance().contains(thread.getID())) {
                 // thread was deleted
-                MessageList viewList = mThreadCache.get(thread.getID());
+                MessageList viewList = mThreadCache.remove(thread.getID());
                 if (viewList != null)
-                    viewList.clearItems();
-                thread.deleteObserver(viewList);
-                mThreadCache.remove(thread.getID());
+                    this.releaseList(viewList);
                 if(this.getCurrentThread().orElse(null) == thread) {
                     this.setViewportView(null);
                 }
@@ -241,8 +380,13 @@ final class ThreadView extends ScrollPane implements Observer {
      */
     private final class MessageList extends TableView<MessageList.MessageItem, KonMessage> {
 
+        /** Number of rows above and below the visible ones that keep their content. */
+        private static final int OVERSCAN = 10;
+
         private final KonThread mThread;
         private Optional<Background> mBackground = Optional.empty();
+        /** Items with created content. */
+        private final Set<MessageItem> mCreatedItems = new HashSet<>();
 
         private MessageList(KonThread thread) {
             super();
@@ -324,25 +468,66 @@ final class ThreadView extends ScrollPane implements Observer {
         }
 
         private void insertMessages() {
-            Set<MessageItem> newItems = new HashSet<>();
-            for (KonMessage message: mThread.getMessages()) {
-                if (!this.containsValue(message)) {
-                    newItems.add(new MessageItem(message));
-                    // trigger scrolling
+            SortedSet<KonMessage> messages = mThread.getMessages();
+            // messages are only removed when the thread is deleted
+            List<KonMessage> missing;
+            synchronized (messages) {
+                missing = this.getMissing(messages);
+                // trigger scrolling, but not if only older messages were loaded
+                if (!messages.isEmpty() && !this.containsValue(messages.last()))
                     mScrollDown = true;
-                }
             }
-            this.sync(mThread.getMessages(), newItems);
+            Set<MessageItem> newItems = new HashSet<>();
+            for (KonMessage message : missing)
+                newItems.add(new MessageItem(message));
+            this.addItems(newItems);
         }
 
         private void insertMessage(KonMessage message) {
+            if (this.containsValue(message))
+                return;
             Set<MessageItem> newItems = new HashSet<>();
             newItems.add(new MessageItem(message));
-            this.sync(mThread.getMessages(), newItems);
+            // only added, no need to check for removed messages
+            this.addItems(newItems);
             // trigger scrolling
             mScrollDown = true;
         }
 
+        /**
+         * Release the content of all items that are not visible (plus
+         * overscan). Row heights are kept by the table, the content is
+         * created again when an item is rendered.
+         */
+        private void releaseHidden() {
+            if (mCreatedItems.isEmpty())
+                return;
+
+            Rectangle rect = this.getVisibleRect();
+            int first = this.rowAtPoint(new Point(0, rect.y));
+            int last = this.rowAtPoint(new Point(0, rect.y + rect.height - 1));
+            if (first < 0)
+                first = 0;
+            if (last < 0)
+                last = this.getRowCount() - 1;
+            first = Math.max(0, first - OVERSCAN);
+            last = Math.min(this.getRowCount() - 1, last + OVERSCAN);
+
+            Set<MessageItem> visible = new HashSet<>();
+            for (int i = first; i <= last; i++)
+                visible.add(this.getDisplayedItemAt(i));
+
+            Component editor = this.getEditorComponent();
+            Iterator<MessageItem> it = mCreatedItems.iterator();
+            while (it.hasNext()) {
+                MessageItem item = it.next();
+                if (visible.contains(item) || item == editor)
+                    continue;
+                item.releaseContent();
+                it.remove();
+            }
+        }
+
         private void showPopupMenu(MouseEvent e) {
             int row = this.rowAtPoint(e.getPoint());
             if (row < 0)
@@ -370,6 +555,7 @@ final class ThreadView extends ScrollPane implements Observer {
          * View for one message.
          * The content is added to a panel inside this panel. For performance
          * reasons the content is created when the item is rendered in the table
+         * and released again when the item is not visible anymore.
          */
         final class MessageItem extends TableView<MessageItem, KonMessage>.TableItem {
 
@@ -380,6 +566,9 @@ final class ThreadView extends ScrollPane implements Observer {
             private WebLabel mStatusIconLabel;
             private int mPreferredTextWidth;
             private boolean mCreated = false;
+            private Optional<Future<?>> mImageTask = Optional.empty();
+            private WebLinkLabel mImageView = null;
+            private String mImagePath = null;
 
             MessageItem(KonMessage message) {
                 super(message);
@@ -393,6 +582,7 @@ final class ThreadView extends ScrollPane implements Observer {
                 if (mCreated)
                     return;
                 mCreated = true;
+                mCreatedItems.add(this);
 
                 WebPanel messagePanel = new WebPanel(true);
                 messagePanel.setWebColoredBackground(false);
@@ -471,10 +661,30 @@ final class ThreadView extends ScrollPane implements Observer {
                 mValue.getUser().addObserver(this);
             }
 
+            private void releaseContent() {
+                if (!mCreated)
+                    return;
+                mCreated = false;
+
+                this.cancelImageTask();
+                mValue.getUser().deleteObserver(this);
+                TooltipManager.removeTooltips(mStatusPanel);
+                this.removeAll();
+                mFromLabel = null;
+                mContentPanel = null;
+                mTextPane = null;
+                mStatusPanel = null;
+                mStatusIconLabel = null;
+            }
+
             @Override
             protected void render(int listWidth, boolean isSelected) {
                 this.createContent();
 
+                // loading was dropped, the image is visible again
+                if (mImageTask.isPresent() && mImageTask.get().isCancelled())
+                    this.loadImage();
+
                 // note: on the very first call the list width is zero
                 int maxWidth = (int)(listWidth * 0.8);
                 int width = Math.min(mPreferredTextWidth, maxWidth);
@@ -595,6 +805,7 @@ final class ThreadView extends ScrollPane implements Observer {
                 Component oldComp = layout.getLayoutComponent(BorderLayout.SOUTH);
                 if (oldComp != null)
                     mContentPanel.remove(oldComp);
+                this.cancelImageTask();
 
                 Optional<MessageContent.Attachment> optAttachment =
                         mValue.getContent().getAttachment();
@@ -611,8 +822,14 @@ final class ThreadView extends ScrollPane implements Observer {
                         att.getMimeType().startsWith("image")) {
                     WebLinkLabel imageView = new WebLinkLabel();
                     imageView.setLink("", createLinkRunnable(path));
-                    // file should be present and should be an image, show it
-                    ImageLoader.setImageIconAsync(imageView, path.toString());
+                    // file should be present and should be an image, show it;
+                    // use the small thumbnail if there is one
+                    Optional<Path> optThumbnail = Downloader.getInstance().getThumbnail(fName);
+                    mImageView = imageView;
+                    mImagePath = optThumbnail.isPresent() ?
+                            optThumbnail.get().toString() :
+                            path.toString();
+                    this.loadImage();
                     mContentPanel.add(imageView, BorderLayout.SOUTH);
                     return;
                 }
@@ -620,6 +837,9 @@ final class ThreadView extends ScrollPane implements Observer {
                 // show a link to the file
                 WebLabel attLabel;
                 if (att.getFileName().isEmpty()) {
+                    // user is looking at it, download first
+                    if (mValue instanceof InMessage)
+                        Downloader.getInstance().prioritize((InMessage) mValue);
                     String statusText = Tr.tr("loading...");
                     switch (att.getDownloadProgress()) {
                         case 0:
@@ -638,6 +858,19 @@ final class ThreadView extends ScrollPane implements Observer {
                 mContentPanel.add(attachmentPanel, BorderLayout.SOUTH);
             }
 
+            private void loadImage() {
+                mImageTask = Optional.<Future<?>>of(
+                        ImageLoader.setImageIconAsync(mImageView, mImagePath));
+            }
+
+            private void cancelImageTask() {
+                if (mImageTask.isPresent())
+                    mImageTask.get().cancel(true);
+                mImageTask = Optional.empty();
+                mImageView = null;
+                mImagePath = null;
+            }
+
             private WebPopupMenu getPopupMenu() {
                 WebPopupMenu popupMenu = new WebPopupMenu();
                 if (mValue.getCoderStatus().isEncrypted()) {
@@ -678,7 +911,9 @@ final class ThreadView extends ScrollPane implements Observer {
 
             @Override
             protected void onRemove() {
+                this.cancelImageTask();
                 mValue.getUser().deleteObserver(this);
+                mCreatedItems.remove(this);
             }
         }
     }
@@ -45,6 +45,7 @@ import java.util.HashSet;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
+import java.util.SortedSet;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
 import org.apache.commons.lang.StringEscapeUtils;
@@ -110,10 +111,9 @@ final class UserListView extends TableView<UserItem, User> implements Observer {
     @Override
     protected void updateOnEDT(Object arg) {
         Set<UserItem> newItems = new HashSet<>();
-        Set<User> user = mUserList.getAll();
-        for (User oneUser: user)
-            if (!this.containsValue(oneUser))
-                newItems.add(new UserItem(oneUser));
+        SortedSet<User> user = mUserList.getAll();
+        for (User oneUser: this.getMissing(user))
+            newItems.add(new UserItem(oneUser));
         this.sync(user, newItems);
     }
 
@@ -52,6 +52,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.security.cert.CertificateException;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Optional;
@@ -103,6 +104,9 @@ import org.kontalk.util.Tr;
 public final class View implements Observer {
     private final static Logger LOGGER = Logger.getLogger(View.class.getName());
 
+    /** Maximum number of hits shown for a message search. */
+    private final static int SEARCH_LIMIT = 30;
+
     final static Color BLUE = new Color(130, 170, 240);
     //final static Color BLUE = new Color(0, 181, 233);
     final static Color LIGHT_BLUE = new Color(220, 220, 250);
@@ -545,6 +549,15 @@ public final class View implements Observer {
         mMainFrame.selectTab(MainFrame.Tab.THREADS);
     }
 
+    List<MessageList.SearchHit> searchMessages(String text) {
+        return MessageList.getInstance().search(text, SEARCH_LIMIT);
+    }
+
+    void showSearchHit(MessageList.SearchHit hit) {
+        this.showThread(hit.thread);
+        mThreadView.showMessage(hit.messageID);
+    }
+
     void selectedThreadChanged(KonThread thread) {
         if (thread == null)
             return;
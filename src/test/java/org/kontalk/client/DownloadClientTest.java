@@ -0,0 +1,344 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.kontalk.util.EncodingUtils;
+
+/**
+ * Downloads from a local HTTPS server, standing in for the Kontalk file
+ * server.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public class DownloadClientTest {
+
+    private static final String FILE_NAME = "attachment.bin";
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int ID = 7;
+
+    private static PrivateKey KEY;
+    private static X509Certificate CERT;
+    /** Another client key, the downloads use another SSL context with it. */
+    private static PrivateKey OTHER_KEY;
+    private static X509Certificate OTHER_CERT;
+
+    private HttpsServer mServer;
+    private FileHandler mHandler;
+    private File mDir;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+        // the same self-signed certificate for client and server
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        KeyPair keyPair = kpg.generateKeyPair();
+        CERT = createCertificate(keyPair);
+        KEY = keyPair.getPrivate();
+        keyPair = kpg.generateKeyPair();
+        OTHER_CERT = createCertificate(keyPair);
+        OTHER_KEY = keyPair.getPrivate();
+    }
+
+    private static X509Certificate createCertificate(KeyPair keyPair) throws Exception {
+        X500Name name = new X500Name("CN=localhost");
+        Date now = new Date();
+        return new JcaX509CertificateConverter().getCertificate(
+                new JcaX509v3CertificateBuilder(name,
+                        BigInteger.ONE,
+                        now,
+                        new Date(now.getTime() + 24 * 60 * 60 * 1000),
+                        name,
+                        keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA")
+                        .build(keyPair.getPrivate())));
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Security.removeProvider(BouncyCastleProvider.PROVIDER_NAME);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = Files.createTempDirectory("kontalk_test").toFile();
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", KEY, new char[0], new Certificate[] { CERT });
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, new char[0]);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+
+        byte[] content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        mHandler = new FileHandler(content);
+        mServer = HttpsServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.setHttpsConfigurator(new HttpsConfigurator(context));
+        mServer.createContext("/", mHandler);
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        FileUtils.deleteQuietly(mDir);
+    }
+
+    @Test
+    public void testDownload() throws IOException {
+        String path = newClient().download(this.url(), mDir, ID);
+
+        assertEquals(new File(mDir, FILE_NAME).getAbsolutePath(), path);
+        assertTrue(Arrays.equals(mHandler.mContent, FileUtils.readFileToByteArray(new File(path))));
+        // only the downloaded file is left
+        assertEquals(1, mDir.list().length);
+    }
+
+    @Test
+    public void testResumeAfterBrokenTransfer() throws IOException {
+        mHandler.mBreakAfter = FILE_SIZE / 3;
+        String path = newClient().download(this.url(), mDir, ID);
+
+        assertFalse(path.isEmpty());
+        assertTrue(Arrays.equals(mHandler.mContent, FileUtils.readFileToByteArray(new File(path))));
+        assertEquals(2, mHandler.mRanges.size());
+        assertNull(mHandler.mRanges.get(0));
+        assertEquals("bytes=" + FILE_SIZE / 3 + "-", mHandler.mRanges.get(1));
+    }
+
+    @Test
+    public void testRangeNotSatisfiable() throws Exception {
+        // stale partial file from an earlier, larger version
+        File partFile = new File(mDir, ".download_" + ID + "_" + sha1(this.url()) + ".part");
+        FileUtils.writeByteArrayToFile(partFile, new byte[FILE_SIZE + 10]);
+        Properties meta = new Properties();
+        meta.setProperty("filename", FILE_NAME);
+        try (OutputStream out = new FileOutputStream(
+                new File(mDir, ".download_" + ID + "_" + sha1(this.url()) + ".meta"))) {
+            meta.store(out, null);
+        }
+
+        String path = newClient().download(this.url(), mDir, ID);
+
+        assertFalse(path.isEmpty());
+        assertTrue(Arrays.equals(mHandler.mContent, FileUtils.readFileToByteArray(new File(path))));
+        assertEquals(2, mHandler.mRanges.size());
+        assertEquals("bytes=" + (FILE_SIZE + 10) + "-", mHandler.mRanges.get(0));
+        assertNull(mHandler.mRanges.get(1));
+        assertEquals(1, mDir.list().length);
+    }
+
+    /**
+     * A download with another key replaces the shared HTTP client. A running
+     * download must not fail because of that.
+     */
+    @Test
+    public void testClientReplacedDuringDownload() throws Exception {
+        mHandler.mHold = new CountDownLatch(1);
+        final File firstDir = new File(mDir, "first");
+        firstDir.mkdir();
+        final String[] firstPath = new String[1];
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                firstPath[0] = newClient().download(DownloadClientTest.this.url(), firstDir, ID);
+            }
+        });
+        first.start();
+        assertTrue(mHandler.mHolding.await(30, TimeUnit.SECONDS));
+
+        File secondDir = new File(mDir, "second");
+        secondDir.mkdir();
+        String secondPath = new DownloadClient(OTHER_KEY, OTHER_CERT, false, LISTENER)
+                .download(this.url(), secondDir, ID);
+        assertFalse(secondPath.isEmpty());
+
+        mHandler.mHold.countDown();
+        first.join();
+        assertFalse(firstPath[0].isEmpty());
+        assertTrue(Arrays.equals(mHandler.mContent, FileUtils.readFileToByteArray(new File(firstPath[0]))));
+        // no retry
+        assertEquals(2, mHandler.mRanges.size());
+    }
+
+    /** Partial data of another download of the same URL is not used. */
+    @Test
+    public void testPartialFilePerDownload() throws Exception {
+        File otherPart = new File(mDir, ".download_" + (ID + 1) + "_" + sha1(this.url()) + ".part");
+        FileUtils.writeByteArrayToFile(otherPart, new byte[FILE_SIZE / 2]);
+        Properties meta = new Properties();
+        meta.setProperty("filename", FILE_NAME);
+        File otherMeta = new File(mDir, ".download_" + (ID + 1) + "_" + sha1(this.url()) + ".meta");
+        try (OutputStream out = new FileOutputStream(otherMeta)) {
+            meta.store(out, null);
+        }
+
+        String path = newClient().download(this.url(), mDir, ID);
+
+        assertFalse(path.isEmpty());
+        assertTrue(Arrays.equals(mHandler.mContent, FileUtils.readFileToByteArray(new File(path))));
+        assertEquals(1, mHandler.mRanges.size());
+        assertNull(mHandler.mRanges.get(0));
+        assertEquals(FILE_SIZE / 2, otherPart.length());
+        assertTrue(otherMeta.isFile());
+    }
+
+    @Test
+    public void testFileExists() throws IOException {
+        FileUtils.writeStringToFile(new File(mDir, FILE_NAME), "old");
+        String path = newClient().download(this.url(), mDir, ID);
+
+        assertTrue(path.isEmpty());
+        // partial data is not kept
+        assertEquals(1, mDir.list().length);
+        assertEquals("old", FileUtils.readFileToString(new File(mDir, FILE_NAME)));
+    }
+
+    private String url() {
+        return "https://localhost:" + mServer.getAddress().getPort() + "/download/abc";
+    }
+
+    private static String sha1(String s) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        return EncodingUtils.bytesToHex(md.digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static DownloadClient newClient() {
+        return new DownloadClient(KEY, CERT, false, LISTENER);
+    }
+
+    private static final DownloadClient.ProgressListener LISTENER =
+            new DownloadClient.ProgressListener() {
+                @Override
+                public void updateProgress(int percent) {
+                }
+            };
+
+    /**
+     * Serves one file, with support for range requests. The connection can
+     * be broken or held during the first transfer.
+     */
+    private static final class FileHandler implements HttpHandler {
+        private final byte[] mContent;
+        /** Range headers of all requests, null for requests without. */
+        private final List<String> mRanges = new CopyOnWriteArrayList<>();
+        /** Number of bytes sent before breaking the first transfer, or -1. */
+        private volatile int mBreakAfter = -1;
+        /** If set, the first transfer stops halfway until released. */
+        private volatile CountDownLatch mHold = null;
+        private final CountDownLatch mHolding = new CountDownLatch(1);
+
+        private FileHandler(byte[] content) {
+            mContent = content;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            mRanges.add(range);
+            int offset = 0;
+            int code = 200;
+            if (range != null) {
+                offset = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                if (offset >= mContent.length) {
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
+                code = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + offset + "-" + (mContent.length - 1) + "/" + mContent.length);
+            }
+            exchange.getResponseHeaders().set("Content-Disposition",
+                    "attachment; filename=\"" + FILE_NAME + "\"");
+            exchange.getResponseHeaders().set("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(code, mContent.length - offset);
+
+            OutputStream out = exchange.getResponseBody();
+            if (mBreakAfter >= 0) {
+                out.write(mContent, offset, mBreakAfter - offset);
+                out.flush();
+                mBreakAfter = -1;
+                // the server closes the connection
+                throw new IOException("transfer broken");
+            }
+            CountDownLatch hold = mHold;
+            if (hold != null && mHolding.getCount() > 0) {
+                int half = mContent.length / 2;
+                out.write(mContent, offset, half - offset);
+                out.flush();
+                mHolding.countDown();
+                try {
+                    hold.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                offset = half;
+            }
+            out.write(mContent, offset, mContent.length - offset);
+            out.close();
+        }
+    }
+}
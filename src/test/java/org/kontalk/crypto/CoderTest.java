@@ -0,0 +1,163 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.openpgp.PGPCompressedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPKeyPair;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.kontalk.system.Config;
+
+/**
+ * Decryption of large attachments.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public class CoderTest {
+
+    /** Size of the large file, must be much larger than the heap. */
+    private static final long LARGE_SIZE = 128L * 1024 * 1024;
+    private static final int CHUNK = 1 << 16;
+
+    private static File DIR;
+    private static PGPKeyPair MY_KEY;
+    private static PGPKeyPair SENDER_KEY;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        DIR = Files.createTempDirectory("kontalk_test").toFile();
+        Config.initialize(new File(DIR, Config.CONF_NAME).getAbsolutePath());
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+        kpg.initialize(1024);
+        MY_KEY = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+        SENDER_KEY = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, kpg.generateKeyPair(), new Date());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        FileUtils.deleteQuietly(DIR);
+    }
+
+    /**
+     * Decrypt and verify a file that doesn't fit into memory. The decrypted
+     * data is only hashed, not kept.
+     */
+    @Test
+    public void testDecryptLargeFile() throws Exception {
+        // skipped if the heap is large, see test task in build.gradle
+        Assume.assumeTrue(Runtime.getRuntime().maxMemory() < LARGE_SIZE / 2);
+
+        File encrypted = new File(DIR, "large.pgp");
+        byte[] plainHash;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(encrypted))) {
+            plainHash = encrypt(out, LARGE_SIZE);
+        }
+        assertTrue(encrypted.length() > LARGE_SIZE);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        Coder.DecryptionResult result;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(encrypted));
+                OutputStream out = new DigestOutputStream(new NullOutputStream(), digest)) {
+            result = Coder.decryptAndVerify(in,
+                    out,
+                    MY_KEY.getPrivateKey(),
+                    SENDER_KEY.getPublicKey());
+        }
+
+        assertTrue(result.decrypted);
+        assertTrue("errors: " + result.errors, result.errors.isEmpty());
+        assertEquals(Coder.Signing.VERIFIED, result.signing);
+        assertTrue(Arrays.equals(plainHash, digest.digest()));
+    }
+
+    /**
+     * Encrypt and sign pseudo-random data with partial packets.
+     * Compression is disabled to keep the file large.
+     * @return SHA-256 hash of the plain data
+     */
+    private static byte[] encrypt(OutputStream out, long size) throws Exception {
+        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(
+                new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_256)
+                        .setWithIntegrityPacket(true)
+                        .setSecureRandom(new SecureRandom()));
+        encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(MY_KEY.getPublicKey()));
+        OutputStream encryptedOut = encGen.open(out, new byte[CHUNK]);
+
+        PGPCompressedDataGenerator compGen =
+                new PGPCompressedDataGenerator(CompressionAlgorithmTags.UNCOMPRESSED);
+        OutputStream compressedOut = compGen.open(encryptedOut, new byte[CHUNK]);
+
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator(new BcPGPContentSignerBuilder(
+                SENDER_KEY.getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, SENDER_KEY.getPrivateKey());
+        sigGen.generateOnePassVersion(false).encode(compressedOut);
+
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(compressedOut,
+                PGPLiteralData.BINARY, "", new Date(), new byte[CHUNK]);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        Random random = new Random(42);
+        byte[] buf = new byte[CHUNK];
+        for (long written = 0; written < size; written += buf.length) {
+            random.nextBytes(buf);
+            literalOut.write(buf);
+            sigGen.update(buf);
+            digest.update(buf);
+        }
+        literalGen.close();
+        sigGen.generate().encode(compressedOut);
+        compGen.close();
+        encGen.close();
+        return digest.digest();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.kontalk.system.Config;
+import org.kontalk.system.Database;
+
+/**
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public class MessageListTest {
+
+    private static File DIR;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        DIR = Files.createTempDirectory("kontalk_test").toFile();
+        Config.initialize(new File(DIR, Config.CONF_NAME).getAbsolutePath());
+        Database.initialize(new File(DIR, Database.DB_NAME).getAbsolutePath());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Database.getInstance().flush();
+        FileUtils.deleteQuietly(DIR);
+    }
+
+    @Test
+    public void testThreadDeleted() {
+        MessageList messageList = MessageList.getInstance();
+        User user = UserList.getInstance().add("deleted@messages.test", "").get();
+        KonThread thread = ThreadList.getInstance().get(user);
+        List<OutMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            OutMessage.Builder builder = new OutMessage.Builder(thread, user, false);
+            builder.content(new MessageContent("message " + i));
+            OutMessage message = builder.build();
+            messageList.add(message);
+            thread.addMessage(message);
+            messages.add(message);
+        }
+        messages.get(0).setStatus(KonMessage.Status.SENT);
+        assertEquals(3, messageList.getPending().size());
+
+        ThreadList.getInstance().delete(thread.getID());
+
+        assertTrue(messageList.getPending().isEmpty());
+        for (OutMessage message : messages)
+            assertFalse(messageList.getLast(message.getXMPPID()).isPresent());
+    }
+}
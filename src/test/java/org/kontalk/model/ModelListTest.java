@@ -0,0 +1,236 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.kontalk.system.Config;
+import org.kontalk.system.Database;
+
+/**
+ * Multithreaded stress test for the user, thread and message list.
+ * Writers modify the lists while readers iterate over and look up items.
+ * The lists are singletons, every test uses its own users.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public class ModelListTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 100;
+
+    private static File DIR;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        DIR = Files.createTempDirectory("kontalk_test").toFile();
+        Config.initialize(new File(DIR, Config.CONF_NAME).getAbsolutePath());
+        Database.initialize(new File(DIR, Database.DB_NAME).getAbsolutePath());
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        Database.getInstance().flush();
+        FileUtils.deleteQuietly(DIR);
+    }
+
+    @Test
+    public void testUserList() throws Exception {
+        final UserList userList = UserList.getInstance();
+        final AtomicInteger added = new AtomicInteger();
+        this.run(new Worker() {
+            @Override
+            public void write(int threadNo, int i) {
+                // every JID is added by two threads, only one may succeed
+                String jid = "u" + (threadNo / 2) + "_" + i + "@users.test";
+                if (userList.add(jid, "").isPresent())
+                    added.incrementAndGet();
+                assertTrue(userList.contains(jid));
+                assertTrue(userList.get(jid + "/resource").isPresent());
+            }
+            @Override
+            public void read() {
+                for (User user : userList.getAll())
+                    assertTrue(userList.get(user.getJID()).isPresent());
+            }
+        });
+
+        assertEquals(THREADS / 2 * ROUNDS, added.get());
+        int count = 0;
+        for (User user : userList.getAll()) {
+            if (user.getJID().endsWith("@users.test"))
+                count++;
+        }
+        assertEquals(added.get(), count);
+    }
+
+    @Test
+    public void testThreadList() throws Exception {
+        final ThreadList threadList = ThreadList.getInstance();
+        final UserList userList = UserList.getInstance();
+        for (int i = 0; i < ROUNDS; i++)
+            userList.add("u" + i + "@threads.test", "");
+
+        this.run(new Worker() {
+            @Override
+            public void write(int threadNo, int i) {
+                // all threads get the same thread for a user, create it once
+                User user = userList.get("u" + i + "@threads.test").get();
+                KonThread thread = threadList.get(user);
+                assertTrue(threadList.contains(thread.getID()));
+                assertEquals(thread, threadList.get(thread.getID()).get());
+
+                // create and delete a group thread
+                Set<User> group = new HashSet<>();
+                group.add(user);
+                group.add(userList.get("u" + ((i + 1) % ROUNDS) + "@threads.test").get());
+                KonThread groupThread = threadList.createNew(group);
+                threadList.delete(groupThread.getID());
+                assertFalse(threadList.contains(groupThread.getID()));
+            }
+            @Override
+            public void read() {
+                for (KonThread thread : threadList.getAll())
+                    threadList.contains(thread.getID());
+            }
+        });
+
+        int count = 0;
+        for (KonThread thread : threadList.getAll()) {
+            Set<User> user = thread.getUser();
+            if (user.iterator().next().getJID().endsWith("@threads.test")) {
+                assertEquals(1, user.size());
+                count++;
+            }
+        }
+        assertEquals(ROUNDS, count);
+    }
+
+    @Test
+    public void testMessageList() throws Exception {
+        final MessageList messageList = MessageList.getInstance();
+        final List<KonThread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            User user = UserList.getInstance().add("u" + i + "@messages.test", "").get();
+            threads.add(ThreadList.getInstance().get(user));
+        }
+        final int pendingBefore = messageList.getPending().size();
+
+        this.run(new Worker() {
+            @Override
+            public void write(int threadNo, int i) {
+                KonThread thread = threads.get(threadNo);
+                User user = thread.getUser().iterator().next();
+                OutMessage.Builder builder = new OutMessage.Builder(thread, user, false);
+                builder.content(new MessageContent("message " + i));
+                OutMessage message = builder.build();
+                assertTrue(messageList.add(message));
+                thread.addMessage(message);
+                assertEquals(message, messageList.getLast(message.getXMPPID()).get());
+                // every second message is sent
+                if (i % 2 == 0)
+                    message.setStatus(KonMessage.Status.SENT);
+            }
+            @Override
+            public void read() {
+                SortedSet<OutMessage> pending = messageList.getPending();
+                for (OutMessage message : pending) {
+                    Optional<OutMessage> optLast = messageList.getLast(message.getXMPPID());
+                    assertTrue(optLast.isPresent());
+                }
+            }
+        });
+
+        assertEquals(pendingBefore + THREADS * ROUNDS / 2, messageList.getPending().size());
+        for (KonThread thread : threads)
+            assertEquals(ROUNDS, thread.getMessages().size());
+    }
+
+    /**
+     * Start writing and reading threads at once and wait until all are
+     * done. Writers and readers alternate.
+     */
+    private void run(final Worker worker) throws InterruptedException {
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger runningWriters = new AtomicInteger(THREADS);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int threadNo = t;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ROUNDS; i++)
+                            worker.write(threadNo, i);
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    } finally {
+                        runningWriters.decrementAndGet();
+                    }
+                }
+            });
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (runningWriters.get() > 0) {
+                            worker.read();
+                            Thread.yield();
+                        }
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+            threads.add(writer);
+            threads.add(reader);
+        }
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        if (!errors.isEmpty())
+            throw new AssertionError("errors in threads: " + errors, errors.peek());
+    }
+
+    private interface Worker {
+        /** Called by each writing thread with its number, once per round. */
+        void write(int threadNo, int i);
+        /** Called by the reading threads repeatedly while writers run. */
+        void read();
+    }
+}
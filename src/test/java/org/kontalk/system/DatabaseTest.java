@@ -0,0 +1,256 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.kontalk.model.KonThread;
+
+/**
+ * Concurrent reading and writing with the pooled read connections.
+ * @author Alexander Bikadorov <abiku@cs.tu-berlin.de>
+ */
+public class DatabaseTest {
+
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 200;
+
+    private File mDir;
+    private Database mDB;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = Files.createTempDirectory("kontalk_test").toFile();
+        Database.initialize(new File(mDir, Database.DB_NAME).getAbsolutePath());
+        mDB = Database.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        mDB.close();
+        FileUtils.deleteQuietly(mDir);
+    }
+
+    @Test
+    public void testReadOwnWrite() throws SQLException {
+        int id = this.insertThread("subject");
+        assertTrue(id > 0);
+        final List<String> subjects = new ArrayList<>();
+        mDB.execSelectOwnWrites(KonThread.TABLE, "_id == " + id, new Database.RowReader() {
+            @Override
+            public void read(ResultSet resultSet) throws SQLException {
+                while (resultSet.next())
+                    subjects.add(resultSet.getString(KonThread.COL_SUBJ));
+            }
+        });
+        assertEquals(Arrays.asList("subject"), subjects);
+    }
+
+    @Test
+    public void testReadCommittedWrite() throws SQLException {
+        int id = this.insertThread("subject");
+        // not committed yet
+        try (ResultSet resultSet = mDB.execSelectWhereInsecure(KonThread.TABLE, "_id == " + id)) {
+            assertFalse(resultSet.next());
+        }
+        mDB.flush();
+        assertEquals("subject", this.selectSubject(id));
+    }
+
+    /** Reading doesn't wait for the writer. */
+    @Test(timeout = 10000)
+    public void testReadWhileWriting() throws Exception {
+        int id = this.insertThread("subject");
+        mDB.flush();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mDB) {
+                    locked.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException ex) {
+                        // ignore
+                    }
+                }
+            }
+        });
+        writer.start();
+        try {
+            locked.await();
+            assertEquals("subject", this.selectSubject(id));
+        } finally {
+            done.countDown();
+            writer.join();
+        }
+    }
+
+    @Test
+    public void testWithoutStatementCache() throws SQLException {
+        mDB.setStatementCache(false);
+        int first = this.insertThread("first");
+        int second = this.insertThread("second");
+        mDB.flush();
+        assertEquals("first", this.selectSubject(first));
+        assertEquals("second", this.selectSubject(second));
+    }
+
+    @Test
+    public void testReadWriteOfOtherThread() throws Exception {
+        final int[] id = new int[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                id[0] = DatabaseTest.this.insertThread("other");
+                mDB.flush();
+            }
+        });
+        writer.start();
+        writer.join();
+        assertEquals("other", this.selectSubject(id[0]));
+    }
+
+    @Test
+    public void testNestedReads() throws SQLException {
+        int id = this.insertThread("nested");
+        mDB.flush();
+        // more open result sets than connections, all on one thread
+        List<ResultSet> open = new ArrayList<>();
+        try {
+            for (int i = 0; i < Database.MAX_READ_CONNS + 2; i++) {
+                ResultSet resultSet = mDB.execSelectWhereInsecure(KonThread.TABLE, "_id == " + id);
+                assertTrue(resultSet.next());
+                open.add(resultSet);
+            }
+            assertEquals(1, mDB.getReadConnectionCount());
+        } finally {
+            for (ResultSet resultSet : open)
+                resultSet.close();
+        }
+    }
+
+    @Test
+    public void testConnectionReleasedOnClose() throws Exception {
+        int id = this.insertThread("release");
+        mDB.flush();
+        // much more reading threads than connections, one after another
+        for (int i = 0; i < Database.MAX_READ_CONNS * 4; i++) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (ResultSet resultSet = mDB.execSelectAll(KonThread.TABLE)) {
+                        resultSet.next();
+                    } catch (SQLException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            reader.start();
+            reader.join();
+        }
+        assertEquals(1, mDB.getReadConnectionCount());
+        assertEquals("release", this.selectSubject(id));
+    }
+
+    /**
+     * Many threads insert rows and read them back after a flush, while others
+     * scan the whole table.
+     */
+    @Test
+    public void testConcurrentReadWrite() throws Exception {
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int threadNo = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < ROUNDS; i++) {
+                            if (threadNo % 4 == 0) {
+                                DatabaseTest.this.countThreads();
+                                continue;
+                            }
+                            String subject = "t" + threadNo + "_" + i;
+                            int id = DatabaseTest.this.insertThread(subject);
+                            assertTrue("insert failed", id > 0);
+                            mDB.flush();
+                            assertEquals(subject, DatabaseTest.this.selectSubject(id));
+                        }
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        if (!errors.isEmpty())
+            throw new AssertionError("errors in threads: " + errors, errors.peek());
+        assertTrue(mDB.getReadConnectionCount() <= Database.MAX_READ_CONNS);
+        mDB.flush();
+        int writers = THREADS - (THREADS + 3) / 4;
+        assertEquals(writers * ROUNDS, this.countThreads());
+    }
+
+    private int insertThread(String subject) {
+        List<Object> values = new ArrayList<>();
+        values.add(null);
+        values.add(subject);
+        values.add(true);
+        values.add("{}");
+        return mDB.execInsert(KonThread.TABLE, values);
+    }
+
+    private String selectSubject(int id) throws SQLException {
+        try (ResultSet resultSet = mDB.execSelectWhereInsecure(KonThread.TABLE, "_id == " + id)) {
+            assertTrue("row not found, id: " + id, resultSet.next());
+            return resultSet.getString(KonThread.COL_SUBJ);
+        }
+    }
+
+    private int countThreads() throws SQLException {
+        int count = 0;
+        try (ResultSet resultSet = mDB.execSelectAll(KonThread.TABLE)) {
+            while (resultSet.next())
+                count++;
+        }
+        return count;
+    }
+}